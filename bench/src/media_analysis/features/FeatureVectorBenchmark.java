@@ -0,0 +1,69 @@
+package media_analysis.features;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import media_analysis.Configuration;
+import media_analysis.Outlet;
+import media_analysis.nlp.BenchmarkData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import weka.core.Instance;
+
+/**
+ * Feature vector construction of one line after the other, with the feature set and frequency tables of the given
+ * configuration.
+ * @author yuvalp
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FeatureVectorBenchmark {
+
+    @Param("conf/conf.txt")
+    public String conf;
+
+    private String[][] lines;
+    private int next = 0;
+    private NewsOutletPredictorFeatureExtractor extractor;
+    private NewsOutletPredictorFeatureExtractor.Dataset dataset;
+
+    @Setup
+    public void init() throws IOException {
+        Configuration configuration = new Configuration(conf);
+        List<String> l = BenchmarkData.readLines(configuration.get(Configuration.INPUT_KEY));
+        lines = new String[l.size()][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = l.get(i).split("\\t");
+        }
+        extractor = new NewsOutletPredictorFeatureExtractor(configuration);
+        List<String> outlets = new ArrayList<>();
+        for (Outlet o : Outlet.values()) {
+            outlets.add(o.name());
+        }
+        dataset = extractor.new Dataset("bench", outlets);
+    }
+
+    private String[] nextLine() {
+        String[] columns = lines[next];
+        next = (next + 1) % lines.length;
+        return columns;
+    }
+
+    @Benchmark
+    public Instance instance() {
+        return extractor.toInstance(nextLine(), dataset.features);
+    }
+
+}
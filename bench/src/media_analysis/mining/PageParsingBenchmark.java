@@ -0,0 +1,54 @@
+package media_analysis.mining;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import media_analysis.Outlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Headline parsing of each outlet's page in data/html-dir-sample, from memory, with the DOM or the streaming scanner.
+ * @author yuvalp
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PageParsingBenchmark {
+
+    @Param({ "YNET", "ISRAEL_HAYOM", "HAARETZ", "MAARIV", "NRG", "MAKO", "WALLA" })
+    public String outlet;
+
+    @Param({ "dom", "stream" })
+    public String mode;
+
+    @Param("data/html-dir-sample")
+    public String sampleDir;
+
+    private Outlet o;
+    private byte[] page;
+
+    @Setup
+    public void readPage() throws IOException {
+        o = Outlet.valueOf(outlet);
+        File dateDir = new File(sampleDir, o.dirName()).listFiles()[0];
+        page = Files.readAllBytes(new File(dateDir, o.domain() + o.indexFile()).toPath());
+    }
+
+    @Benchmark
+    public String parse() throws IOException {
+        return ExtractTitlesFromHtml.parseHeadline(new ByteArrayInputStream(page), o, mode.equals("stream"));
+    }
+
+}
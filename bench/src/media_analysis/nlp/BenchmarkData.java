@@ -0,0 +1,45 @@
+package media_analysis.nlp;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input lines for the benchmarks, read from the tokenized headlines.
+ * @author yuvalp
+ *
+ */
+public class BenchmarkData {
+
+    /**
+     * @return lines with all five columns: time-changed, outlet, epochs, raw, lemmatized
+     */
+    public static List<String> readLines(String location) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(location), "UTF8"));
+        String line = in.readLine();
+        while (line != null) {
+            if (line.split("\\t").length == 5) {
+                lines.add(line);
+            }
+            line = in.readLine();
+        }
+        in.close();
+        return lines;
+    }
+
+    /**
+     * @return the given column of each line
+     */
+    public static String[] column(List<String> lines, int column) {
+        String[] values = new String[lines.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = lines.get(i).split("\\t")[column];
+        }
+        return values;
+    }
+
+}
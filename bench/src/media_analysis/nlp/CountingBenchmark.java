@@ -0,0 +1,93 @@
+package media_analysis.nlp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import media_analysis.Outlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Word and lemma counting of one line after the other, into histograms that live through the trial: boxed HashMap
+ * increments as {@link FreqCounter} used to do, against its {@link FreqCounter.Shard}.
+ * @author yuvalp
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CountingBenchmark {
+
+    @Param("data/tok-cann-all-headlines.txt")
+    public String headlines;
+
+    private String[] lines;
+    private int next = 0;
+    private Map<Outlet, Map<String, Integer>> wordsFreqs;
+    private Map<Outlet, Map<String, Integer>> lemmataFreqs;
+    private Map<String, Integer> allWordFreqs;
+    private Map<String, Integer> allLemmataFreqs;
+    private FreqCounter.Shard shard;
+
+    @Setup
+    public void init() throws IOException {
+        List<String> l = BenchmarkData.readLines(headlines);
+        lines = l.toArray(new String[l.size()]);
+        wordsFreqs = new HashMap<>();
+        lemmataFreqs = new HashMap<>();
+        for (Outlet o : Outlet.values()) {
+            wordsFreqs.put(o, new HashMap<String, Integer>());
+            lemmataFreqs.put(o, new HashMap<String, Integer>());
+        }
+        allWordFreqs = new HashMap<>();
+        allLemmataFreqs = new HashMap<>();
+        shard = new FreqCounter.Shard();
+    }
+
+    private String nextLine() {
+        String line = lines[next];
+        next = (next + 1) % lines.length;
+        return line;
+    }
+
+    @Benchmark
+    public void hashMapIncrement() {
+        String[] columns = nextLine().split("\\t");
+        Outlet o = Outlet.valueOf(columns[1]);
+        Map<String, Integer> wHisto = wordsFreqs.get(o);
+        Map<String, Integer> lHisto = lemmataFreqs.get(o);
+        for (String w : columns[3].split(" ")) {
+            increment(wHisto, w);
+            increment(allWordFreqs, w);
+        }
+        for (String l : columns[4].split(" ")) {
+            increment(lHisto, l);
+            increment(allLemmataFreqs, l);
+        }
+    }
+
+    private static void increment(Map<String, Integer> wHisto, String w) {
+        Integer curr = wHisto.get(w);
+        if (curr == null) {
+            wHisto.put(w, 1);
+        } else {
+            wHisto.put(w, curr + 1);
+        }
+    }
+
+    @Benchmark
+    public boolean shardCount() {
+        return shard.count(nextLine());
+    }
+
+}
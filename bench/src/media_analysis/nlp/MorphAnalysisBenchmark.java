@@ -0,0 +1,63 @@
+package media_analysis.nlp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import media_analysis.utils.MappedStringTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Lemmatization of one headline after the other: straight through the hspell analyzer, through a {@link LemmaCache}
+ * (warm after the first pass), or through an {@link HspellSnapshot} given with -p snapshot=location.
+ * @author yuvalp
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MorphAnalysisBenchmark {
+
+    @Param({ "analyzer", "cache" })
+    public String mode;
+
+    @Param("data/tok-cann-all-headlines.txt")
+    public String headlines;
+
+    @Param("")
+    public String snapshot;
+
+    private String[] rawHeadlines;
+    private TokenLemmatizer lemmatizer;
+    private int next = 0;
+
+    @Setup
+    public void init() throws IOException {
+        rawHeadlines = BenchmarkData.column(BenchmarkData.readLines(headlines), 3);
+        MappedStringTable table = snapshot.isEmpty() ? null : new MappedStringTable(new File(snapshot));
+        LemmaCache cache = mode.equals("cache") ? new LemmaCache(LemmaCache.DEFAULT_CAPACITY) : null;
+        lemmatizer = new TokenLemmatizer(table, cache);
+    }
+
+    @TearDown
+    public void close() {
+        lemmatizer.close();
+    }
+
+    @Benchmark
+    public String lemmatize() throws IOException {
+        String headline = rawHeadlines[next];
+        next = (next + 1) % rawHeadlines.length;
+        return lemmatizer.lemmatize(headline);
+    }
+
+}
@@ -0,0 +1,94 @@
+package media_analysis.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Loading a frequency table and looking words up in it: the text table read into a HashMap as the feature extractor
+ * used to do, against the compiled {@link MappedFreqTable}.
+ * @author yuvalp
+ *
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FreqTableBenchmark {
+
+    @Param({ "data/wordlists-freqs-2012.txt", "data/israblog-freqs.txt" })
+    public String table;
+
+    private Map<String, Integer> hashMap;
+    private MappedFreqTable mapped;
+    private String[] words;
+    private int next = 0;
+
+    @Setup
+    public void init() throws IOException {
+        hashMap = readFreqTable(table);
+        // compiles the table if needed, outside of the measurements
+        mapped = MappedFreqTable.open(table);
+        List<String> keys = new ArrayList<>(hashMap.keySet());
+        words = keys.toArray(new String[keys.size()]);
+    }
+
+    private static Map<String, Integer> readFreqTable(String location) throws IOException {
+        Map<String, Integer> freqTable = new HashMap<>();
+        BufferedReader freqFile = new BufferedReader(new InputStreamReader(new FileInputStream(new File(location)),
+                        "UTF8"));
+        String freqLine = freqFile.readLine();
+        while (freqLine != null) {
+            String[] wordFreq = freqLine.split("\\t");
+            if (wordFreq.length == 2) {
+                freqTable.put(wordFreq[0], Integer.parseInt(wordFreq[1]));
+            }
+            freqLine = freqFile.readLine();
+        }
+        freqFile.close();
+        return freqTable;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Map<String, Integer> loadHashMap() throws IOException {
+        return readFreqTable(table);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public MappedFreqTable openMapped() throws IOException {
+        return new MappedFreqTable(new File(table + MappedFreqTable.SUFFIX));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public Integer lookupHashMap() {
+        String w = words[next];
+        next = (next + 1) % words.length;
+        return hashMap.get(w);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int lookupMapped() {
+        String w = words[next];
+        next = (next + 1) % words.length;
+        return mapped.get(w, 0);
+    }
+
+}
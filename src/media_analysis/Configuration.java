@@ -23,12 +23,41 @@ public class Configuration {
     public static final String WRITE_PAIRED_KEY = "features-write-paired-files";
     public static final String OPTIMIZE_FEATURES_KEY = "optimize-features";
     public static final String FEATURES_HAVE_IDS_KEY = "features-have-ids";
+    public static final String WRITE_INCREMENTALLY_KEY = "features-write-incrementally";
     
     public static final String START_DATE_KEY = "features-start-date";
     public static final String END_DATE_KEY = "features-end-date";
     
     public static final String WORD_FREQ_FILE_KEY = "features-word-freq-file";
     public static final String LEMMA_FREQ_FILE_KEY = "features-lemma-freq-file";
+
+    public static final String LEMMA_VOCABULARY_FILE_KEY = "features-lemma-vocabulary-file";
+    public static final String LEMMA_VOCABULARY_SECTION_KEY = "features-lemma-vocabulary-section";
+    public static final String LEMMA_VOCABULARY_SIZE_KEY = "features-lemma-vocabulary-size";
+    public static final String LEMMA_HASH_BUCKETS_KEY = "features-lemma-hash-buckets";
+    public static final String LEMMA_NGRAMS_KEY = "features-lemma-ngrams";
+
+    public static final String NEAR_DUPLICATES_KEY = "features-near-duplicates";
+    public static final String NEAR_DUPLICATES_WINDOW_KEY = "features-near-duplicates-window-hours";
+    public static final String NEAR_DUPLICATES_THRESHOLD_KEY = "features-near-duplicates-threshold";
+
+    public static final String TRAIN_CLASSIFIER_KEY = "train-classifier";
+    public static final String TRAIN_REMOVE_KEY = "train-remove-attributes";
+    public static final String TRAIN_FOLDS_KEY = "train-folds";
+    public static final String TRAIN_SEED_KEY = "train-seed";
+    public static final String TRAIN_THREADS_KEY = "train-threads";
+    public static final String TRAIN_SUMMARY_KEY = "train-summary-output";
+    public static final String TRAIN_MODEL_KEY = "train-model-output";
+
+    public static final String PIPELINE_HTML_DIR_KEY = "pipeline-html-dir";
+    public static final String PIPELINE_PARSE_MODE_KEY = "pipeline-parse-mode";
+    public static final String PIPELINE_EXTRACT_THREADS_KEY = "pipeline-extract-threads";
+    public static final String PIPELINE_TOKENIZE_THREADS_KEY = "pipeline-tokenize-threads";
+    public static final String PIPELINE_HSPELL_SNAPSHOT_KEY = "pipeline-hspell-snapshot";
+    public static final String PIPELINE_LEMMA_CACHE_KEY = "pipeline-lemma-cache";
+    public static final String PIPELINE_TITLES_TAP_KEY = "pipeline-titles-tap";
+    public static final String PIPELINE_TOKENIZED_TAP_KEY = "pipeline-tokenized-tap";
+
     public static final String DATE_PATTERN = "yyyy-MM-dd";
 
     private Map<String, String> paramValues = new HashMap<>();
@@ -62,6 +91,14 @@ public class Configuration {
         return df.parse(get(key));
     }
 
+    /**
+     * @return the value, or the default if there is none
+     */
+    public int getInt(String key, int defaultValue) {
+        String val = get(key);
+        return val.isEmpty() ? defaultValue : Integer.parseInt(val);
+    }
+
     public boolean getBoolean(String key) {
         return get(key).equalsIgnoreCase("true");
     }
@@ -0,0 +1,217 @@
+package media_analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import media_analysis.features.NewsOutletPredictorFeatureExtractor;
+import media_analysis.mining.ExtractTitlesFromHtml;
+import media_analysis.nlp.AddTokenization;
+import media_analysis.nlp.LemmaCache;
+import media_analysis.utils.BoundedPipe;
+import media_analysis.utils.BoundedPipe.PipeClosedException;
+import media_analysis.utils.MappedStringTable;
+import media_analysis.utils.Metrics;
+
+/**
+ * Runs {@link ExtractTitlesFromHtml}, {@link AddTokenization} and {@link NewsOutletPredictorFeatureExtractor} as
+ * concurrent stages of a single process, each feeding the next through a {@link BoundedPipe} rather than a file, so
+ * that page parsing, lemmatization and feature extraction overlap. The intermediate files can still be written as
+ * taps along the way. The configuration file is the feature extractor's, with the pipeline-* keys added.
+ * Feature extraction stops reading once past the end date, which stops the stages before it too, so taps then end at
+ * that point.
+ * @author yuvalp
+ *
+ */
+public class ExtractionPipeline {
+
+    /** Chunks each stage may write ahead of the next */
+    private static final int PIPE_CAPACITY = 16;
+    private static final int PIPE_CHUNK_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: ExtractionPipeline <conf-file>");
+            return;
+        }
+        Metrics.startExport();
+        Configuration conf = new Configuration(args[0]);
+
+        final ExtractTitlesFromHtml titles = new ExtractTitlesFromHtml(conf.get(Configuration.PIPELINE_HTML_DIR_KEY));
+        String parseMode = conf.get(Configuration.PIPELINE_PARSE_MODE_KEY);
+        titles.setStreaming(parseMode.startsWith("stream"));
+        titles.setFromHtsCache(parseMode.contains("-zip"));
+        titles.setHashPages(parseMode.contains("-hash"));
+        final int extractThreads = conf.getInt(Configuration.PIPELINE_EXTRACT_THREADS_KEY, 1);
+        final int tokenizeThreads = conf.getInt(Configuration.PIPELINE_TOKENIZE_THREADS_KEY, Runtime.getRuntime()
+                        .availableProcessors());
+
+        String snapshotLocation = conf.get(Configuration.PIPELINE_HSPELL_SNAPSHOT_KEY);
+        final MappedStringTable snapshot = snapshotLocation.isEmpty() ? null : new MappedStringTable(new File(
+                        snapshotLocation));
+        String cacheLocation = conf.get(Configuration.PIPELINE_LEMMA_CACHE_KEY);
+        final LemmaCache cache = cacheLocation.isEmpty() ? null : new LemmaCache(LemmaCache.DEFAULT_CAPACITY);
+        if (cache != null) {
+            cache.load(new File(cacheLocation));
+        }
+
+        NewsOutletPredictorFeatureExtractor extractor = new NewsOutletPredictorFeatureExtractor(conf);
+
+        final BoundedPipe titlesPipe = new BoundedPipe(PIPE_CAPACITY, PIPE_CHUNK_SIZE);
+        final BoundedPipe tokenizedPipe = new BoundedPipe(PIPE_CAPACITY, PIPE_CHUNK_SIZE);
+        final Writer titlesOut = tap(titlesPipe.writer(), conf.get(Configuration.PIPELINE_TITLES_TAP_KEY));
+        final Writer tokenizedOut = tap(tokenizedPipe.writer(), conf.get(Configuration.PIPELINE_TOKENIZED_TAP_KEY));
+
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> extracting = stages.submit(new Stage(null, titlesPipe, titlesOut) {
+
+                @Override
+                void run() throws IOException {
+                    titles.extract(titlesOut, extractThreads);
+                    titlesOut.close();
+                }
+
+            });
+            Future<Void> tokenizing = stages.submit(new Stage(titlesPipe, tokenizedPipe, tokenizedOut) {
+
+                @Override
+                void run() throws IOException {
+                    AddTokenization.addTokenizationParallel(new BufferedReader(titlesPipe.reader()), tokenizedOut,
+                                    tokenizeThreads, snapshot, cache);
+                }
+
+            });
+
+            try {
+                extractor.extractFeaturesForOutletSets(new BufferedReader(tokenizedPipe.reader()),
+                                conf.get(Configuration.OUTPUT_KEY),
+                                NewsOutletPredictorFeatureExtractor.outletSets(conf));
+            } catch (IOException | RuntimeException e) {
+                titlesPipe.fail(e);
+                tokenizedPipe.fail(e);
+                throw e;
+            }
+            awaitStage(extracting);
+            awaitStage(tokenizing);
+        } finally {
+            stages.shutdownNow();
+        }
+
+        if (cache != null) {
+            System.out.println(cache);
+            cache.save(new File(cacheLocation));
+        }
+        Metrics.finish();
+        System.out.println("Done!");
+    }
+
+    /**
+     * @return the pipe's writer, also writing to the given file unless its location is empty
+     */
+    private static Writer tap(final Writer pipeWriter, String location) throws IOException {
+        if (location.isEmpty()) {
+            return pipeWriter;
+        }
+        final Writer file = new OutputStreamWriter(new FileOutputStream(location), "UTF8");
+        System.out.println("Writing a copy of the stream to " + location);
+        return new Writer() {
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                file.write(cbuf, off, len);
+                pipeWriter.write(cbuf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                file.write(str, off, len);
+                pipeWriter.write(str, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                file.flush();
+                pipeWriter.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    file.close();
+                } finally {
+                    pipeWriter.close();
+                }
+            }
+
+        };
+    }
+
+    /**
+     * A stage reading from one pipe and writing to another. A failure aborts both, so that neither neighbour waits
+     * on it forever; the next stage closing its input is just the end of the run.
+     */
+    private static abstract class Stage implements Callable<Void> {
+
+        private final BoundedPipe in;
+        private final BoundedPipe out;
+        private final Writer outWriter;
+
+        /**
+         * @param iIn may be null for the first stage
+         * @param iOutWriter writer of the out pipe, with its tap if any
+         */
+        Stage(BoundedPipe iIn, BoundedPipe iOut, Writer iOutWriter) {
+            in = iIn;
+            out = iOut;
+            outWriter = iOutWriter;
+        }
+
+        abstract void run() throws IOException;
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                run();
+            } catch (PipeClosedException e) {
+                // the next stage needs no more, so neither does this one
+                if (in != null) {
+                    in.reader().close();
+                }
+                try {
+                    outWriter.close();
+                } catch (PipeClosedException again) {
+                    // tap is closed first
+                }
+            } catch (IOException | RuntimeException e) {
+                if (in != null) {
+                    in.fail(e);
+                }
+                out.fail(e);
+                throw e;
+            }
+            return null;
+        }
+
+    }
+
+    private static void awaitStage(Future<Void> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for stage", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Stage failed", e.getCause());
+        }
+    }
+
+}
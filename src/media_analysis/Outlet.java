@@ -57,6 +57,47 @@ public enum Outlet {
         return false;
     }
 
+    /**
+     * Same rule as {@link #isMainHeadline(Element)}, over the stack of open elements of a streaming scan.
+     * @param tags lowercase tag names, outermost first
+     * @param classes raw class attribute per open element, or null if it has none
+     * @param top stack index of the element being tested
+     */
+    public boolean isMainHeadline(String[] tags, String[] classes, int top) {
+        switch (this) {
+            case HAARETZ:
+            case MAARIV:
+            case NRG:
+                return tags[top].contains("h1");
+            case YNET:
+                return hasClass(classes[top], "blkbigheader");
+            case ISRAEL_HAYOM:
+                return top >= 1 && tags[top - 1].equals("a") && hasClass(classes[top], "title");
+            case MAKO:
+                return top >= 4 && hasClass(classes[top - 4], "mainItem");
+            case WALLA:
+                return top >= 2 && hasClass(classes[top - 2], "hp-main-article") && tags[top].contains("h3");
+        }
+
+        return false;
+    }
+
+    private static boolean hasClass(String classAttr, String className) {
+        if (classAttr == null) {
+            return false;
+        }
+        int from = classAttr.indexOf(className);
+        while (from >= 0) {
+            int end = from + className.length();
+            if ((from == 0 || Character.isWhitespace(classAttr.charAt(from - 1)))
+                            && (end == classAttr.length() || Character.isWhitespace(classAttr.charAt(end)))) {
+                return true;
+            }
+            from = classAttr.indexOf(className, from + 1);
+        }
+        return false;
+    }
+
     public String charset() {
         if (this == NRG) {
             return "windows-1255";
@@ -0,0 +1,193 @@
+package media_analysis.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import media_analysis.Configuration;
+
+/**
+ * Sidecar index of a headlines text file (output of {@link media_analysis.mining.ExtractTitlesFromHtml} or
+ * {@link media_analysis.nlp.AddTokenization}), from each day to the byte offset of its first line, so that reading a
+ * date range can start with a seek. Kept in location + {@link #SUFFIX}, and extended when the file has grown since,
+ * which assumes the file is only ever appended to.
+ * Format: first line is the indexed length \tab sorted|unsorted, then a line per day: yyyy-MM-dd \tab offset.
+ * @author yuvalp
+ *
+ */
+public class DateIndex {
+
+    public static final String SUFFIX = ".days";
+    private static final DateFormat dayFormat = new SimpleDateFormat(Configuration.DATE_PATTERN, Locale.ENGLISH);
+
+    private final TreeMap<String, Long> dayOffsets = new TreeMap<>();
+    private long indexedLength = 0;
+    private boolean sorted = true;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: DateIndex <headlines-location>");
+            return;
+        }
+        DateIndex index = open(args[0]);
+        System.out.println("Done! Indexed " + index.dayOffsets.size() + " days in " + index.indexedLength + " bytes"
+                        + (index.sorted ? "" : ", lines are not sorted by date"));
+    }
+
+    /**
+     * Reads the index of the file, building or extending it first if needed. If the index cannot be saved, e.g. in a
+     * read-only directory, the one built in memory is used for this run only.
+     */
+    public static DateIndex open(String location) throws IOException {
+        File file = new File(location);
+        File sidecar = new File(location + SUFFIX);
+        DateIndex index = new DateIndex();
+        if (sidecar.isFile()) {
+            index.read(sidecar);
+            if (index.indexedLength > file.length() || !endsLine(file, index.indexedLength)) {
+                System.out.println("Rebuilding stale date index " + sidecar);
+                index = new DateIndex();
+            }
+        }
+        long indexed = index.indexedLength;
+        if (indexed < file.length()) {
+            index.extend(file);
+            if (index.indexedLength > indexed) {
+                try {
+                    index.write(sidecar);
+                } catch (IOException e) {
+                    System.out.println("Could not save date index " + sidecar + ", using it unsaved: " + e);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return offset of the first line dated on the day of the given date or later (the file's length if there are
+     *         none), or -1 if lines are not sorted by date and no seek is safe
+     */
+    public long offsetOf(Date date) {
+        if (!sorted) {
+            return -1;
+        }
+        Entry<String, Long> first;
+        synchronized (dayFormat) {
+            first = dayOffsets.ceilingEntry(dayFormat.format(date));
+        }
+        return first == null ? indexedLength : first.getValue();
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    private static boolean endsLine(File file, long length) throws IOException {
+        if (length == 0) {
+            return true;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Indexes complete lines from the indexed length on.
+     */
+    private void extend(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().position(indexedLength);
+        BufferedInputStream in = new BufferedInputStream(fis, 1 << 16);
+        String lastDay = dayOffsets.isEmpty() ? "" : dayOffsets.lastKey();
+        // lines start with the time changed, e.g. Tue07-01-2014_10-51AM
+        byte[] prefix = new byte[13];
+        int prefixLength = 0;
+        long lineStart = indexedLength;
+        long pos = indexedLength;
+        int b = in.read();
+        while (b >= 0) {
+            pos++;
+            if (b == '\n') {
+                if (prefixLength == prefix.length && isDay(prefix)) {
+                    String day = new String(prefix, 9, 4, "US-ASCII") + "-" + new String(prefix, 3, 5, "US-ASCII");
+                    if (day.compareTo(lastDay) < 0) {
+                        sorted = false;
+                    } else if (!day.equals(lastDay)) {
+                        dayOffsets.put(day, lineStart);
+                        lastDay = day;
+                    }
+                }
+                indexedLength = pos;
+                lineStart = pos;
+                prefixLength = 0;
+            } else if (prefixLength < prefix.length) {
+                prefix[prefixLength++] = (byte) b;
+            }
+            b = in.read();
+        }
+        in.close();
+    }
+
+    /**
+     * @return whether the bytes are a weekday followed by MM-dd-yyyy
+     */
+    private static boolean isDay(byte[] prefix) {
+        for (int i = 3; i < prefix.length; i++) {
+            boolean dash = i == 5 || i == 8;
+            if (dash ? prefix[i] != '-' : prefix[i] < '0' || prefix[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void read(File sidecar) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sidecar), "UTF8"));
+        String[] header = in.readLine().split("\t");
+        indexedLength = Long.parseLong(header[0]);
+        sorted = header[1].equals("sorted");
+        String line = in.readLine();
+        while (line != null) {
+            String[] cols = line.split("\t");
+            dayOffsets.put(cols[0], Long.parseLong(cols[1]));
+            line = in.readLine();
+        }
+        in.close();
+    }
+
+    private void write(File sidecar) throws IOException {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF8");
+        try {
+            out.append(indexedLength + "\t" + (sorted ? "sorted" : "unsorted") + "\n");
+            for (Entry<String, Long> e : dayOffsets.entrySet()) {
+                out.append(e.getKey() + "\t" + e.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,416 @@
+package media_analysis.corpus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import media_analysis.Configuration;
+import media_analysis.Outlet;
+import media_analysis.utils.Consts;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Lucene index of the tokenized headline corpus (output of {@link media_analysis.nlp.AddTokenization}), for counting
+ * and listing the headlines with given lemmata or words, per outlet and over a date range, without a pass over the
+ * corpus.
+ * Fields: outlet, time changed (minutes since the epoch) and epochs survived, indexed and with doc values, and raw
+ * and lemmatized text, analyzed and stored; the lemmatized column is already tokenized, so it is split on spaces, and
+ * the raw one goes through the standard tokenizer (no stop words).
+ * Indexing a headlines file again only adds the lines it has gained since (the commit data keeps the indexed length
+ * of each file, which assumes files are only ever appended to), and a headline already in the index replaces its
+ * copy, so the index can follow a growing corpus.
+ * @author yuvalp
+ *
+ */
+public class HeadlineIndex extends Consts {
+
+    public static final String OUTLET_FIELD = "outlet";
+    public static final String TIME_FIELD = "time";
+    public static final String EPOCHS_FIELD = "epochs";
+    public static final String RAW_FIELD = "raw";
+    public static final String LEMMA_FIELD = "lemma";
+    /** Time, outlet and raw text, identifying a headline when indexed again */
+    private static final String KEY_FIELD = "key";
+    private static final String RAW_PREFIX = RAW_FIELD + ":";
+
+    private static final int DEFAULT_MAX_HEADLINES = 20;
+
+    private final Directory directory;
+    private final Analyzer analyzer = analyzer();
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    /**
+     * Headline and epoch counts per outlet of a query, with the latest of the headlines.
+     */
+    public static class Result {
+
+        /** Indexed by outlet ordinal */
+        public final int[] headlines = new int[Outlet.values().length];
+        public final long[] epochs = new long[Outlet.values().length];
+        /** In the corpus' line format, latest first */
+        public final List<String> latest = new ArrayList<>();
+
+        public int totalHeadlines() {
+            int total = 0;
+            for (int h : headlines) {
+                total += h;
+            }
+            return total;
+        }
+
+    }
+
+    public HeadlineIndex(File location) throws IOException {
+        directory = FSDirectory.open(location);
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length < 3 || !(args[0].equals("index") || args[0].equals("query"))) {
+            System.out.println("Usage: HeadlineIndex index <index-dir> <headlines-location>...");
+            System.out.println("       HeadlineIndex query <index-dir> <lemmata|raw:words> [start-date] [end-date] "
+                            + "[max-headlines]");
+            System.out.println("Dates in " + Configuration.DATE_PATTERN + " format, inclusive; * for open");
+            return;
+        }
+        File location = new File(args[1]);
+        if (args[0].equals("index")) {
+            for (int i = 2; i < args.length; i++) {
+                long start = System.currentTimeMillis();
+                int added = update(location, args[i]);
+                System.out.println("Indexed " + added + " new headlines of " + args[i] + " in "
+                                + (System.currentTimeMillis() - start) + " ms");
+            }
+            System.out.println("Done!");
+            return;
+        }
+
+        DateFormat df = new SimpleDateFormat(Configuration.DATE_PATTERN, Locale.ENGLISH);
+        Date startDate = args.length > 3 && !args[3].equals("*") ? df.parse(args[3]) : null;
+        Date endDate = null;
+        if (args.length > 4 && !args[4].equals("*")) {
+            // inclusive
+            endDate = new Date(df.parse(args[4]).getTime() + 24 * 60 * 60 * 1000L - 1);
+        }
+        int maxHeadlines = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_MAX_HEADLINES;
+
+        HeadlineIndex index = new HeadlineIndex(location);
+        try {
+            long start = System.nanoTime();
+            Result r = index.search(args[2], startDate, endDate, maxHeadlines);
+            long took = System.nanoTime() - start;
+            for (Outlet o : Outlet.values()) {
+                System.out.println(o + "\t" + r.headlines[o.ordinal()] + "\t" + r.epochs[o.ordinal()]);
+            }
+            System.out.println("TOTAL\t" + r.totalHeadlines());
+            System.out.println();
+            for (String line : r.latest) {
+                System.out.println(line);
+            }
+            System.out.println(String.format(Locale.ENGLISH, "%d headlines (outlet, headlines, epochs) in %.1f ms",
+                            r.totalHeadlines(), took / 1e6));
+        } finally {
+            index.close();
+        }
+    }
+
+    private static Analyzer analyzer() {
+        Map<String, Analyzer> byField = new HashMap<>();
+        byField.put(RAW_FIELD, new StandardAnalyzer(Version.LUCENE_4_9, CharArraySet.EMPTY_SET));
+        return new PerFieldAnalyzerWrapper(new WhitespaceAnalyzer(Version.LUCENE_4_9), byField);
+    }
+
+    /**
+     * Indexes the lines a headlines file has gained since it was last indexed, creating the index if needed.
+     * @return number of headlines added
+     */
+    public static int update(File location, String headlinesLocation) throws IOException {
+        File file = new File(headlinesLocation);
+        String source = file.getCanonicalPath();
+        // a line still being written is left for next time
+        long length = file.length();
+        Directory dir = FSDirectory.open(location);
+        IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_4_9, analyzer());
+        conf.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        conf.setRAMBufferSizeMB(64);
+        IndexWriter writer = new IndexWriter(dir, conf);
+        int added = 0;
+        try {
+            Map<String, String> indexedLengths = new HashMap<>();
+            if (writer.getCommitData() != null) {
+                indexedLengths.putAll(writer.getCommitData());
+            }
+            long offset = indexedLengths.containsKey(source) ? Long.parseLong(indexedLengths.get(source)) : 0;
+            if (offset > length) {
+                System.out.println(headlinesLocation + " is shorter than when indexed, indexing it again");
+                offset = 0;
+            }
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(offset);
+            BufferedReader in = new BufferedReader(new InputStreamReader(fis, "UTF8"));
+            DateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
+            int badLines = 0;
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    long lineEnd = offset + utf8Length(line) + 1;
+                    if (lineEnd > length) {
+                        break;
+                    }
+                    offset = lineEnd;
+                    Document doc = document(line, dateFormat);
+                    if (doc == null) {
+                        badLines++;
+                    } else {
+                        writer.updateDocument(new Term(KEY_FIELD, doc.get(KEY_FIELD)), doc);
+                        added++;
+                        if (added % 100000 == 0) {
+                            System.out.println("Indexed " + added + " headlines");
+                        }
+                    }
+                    line = in.readLine();
+                }
+            } finally {
+                in.close();
+            }
+            if (badLines > 0) {
+                System.out.println("Skipped " + badLines + " bad lines");
+            }
+            indexedLengths.put(source, Long.toString(offset));
+            writer.setCommitData(indexedLengths);
+            writer.commit();
+        } finally {
+            writer.close();
+            dir.close();
+        }
+        return added;
+    }
+
+    /**
+     * @param line time-changed \t outlet \t epochs \t raw \t lemmatized
+     * @return null for a bad line
+     */
+    private static Document document(String line, DateFormat dateFormat) {
+        String[] columns = line.split("\\t");
+        if (columns.length != 5) {
+            return null;
+        }
+        long minute;
+        Outlet outlet;
+        int epochs;
+        try {
+            minute = dateFormat.parse(columns[0]).getTime() / 60000;
+            outlet = Outlet.valueOf(columns[1]);
+            epochs = Integer.parseInt(columns[2]);
+        } catch (ParseException | IllegalArgumentException e) {
+            return null;
+        }
+        Document doc = new Document();
+        doc.add(new StringField(KEY_FIELD, minute + "\t" + outlet + "\t" + columns[3], Store.NO));
+        doc.add(new StringField(OUTLET_FIELD, outlet.name(), Store.YES));
+        doc.add(new NumericDocValuesField(OUTLET_FIELD, outlet.ordinal()));
+        doc.add(new LongField(TIME_FIELD, minute, Store.YES));
+        doc.add(new NumericDocValuesField(TIME_FIELD, minute));
+        doc.add(new IntField(EPOCHS_FIELD, epochs, Store.YES));
+        doc.add(new NumericDocValuesField(EPOCHS_FIELD, epochs));
+        doc.add(new TextField(RAW_FIELD, columns[3], Store.YES));
+        doc.add(new TextField(LEMMA_FIELD, columns[4], Store.YES));
+        return doc;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Sees headlines indexed since the index was opened, if any.
+     */
+    public synchronized void refresh() throws IOException {
+        DirectoryReader newer = DirectoryReader.openIfChanged(reader);
+        if (newer != null) {
+            reader.close();
+            reader = newer;
+            searcher = new IndexSearcher(reader);
+        }
+    }
+
+    /**
+     * @param terms space-delimited lemmata, or words if prefixed by raw:, all of which a headline must have
+     * @param startDate may be null
+     * @param endDate inclusive, may be null
+     * @param maxHeadlines number of latest headlines to list
+     */
+    public synchronized Result search(String terms, Date startDate, Date endDate, int maxHeadlines)
+                    throws IOException {
+        BooleanQuery query = new BooleanQuery();
+        for (String term : terms.split(" ")) {
+            if (term.startsWith(RAW_PREFIX)) {
+                // as the words were indexed, e.g. without punctuation
+                for (String word : analyzed(RAW_FIELD, term.substring(RAW_PREFIX.length()))) {
+                    query.add(new TermQuery(new Term(RAW_FIELD, word)), Occur.MUST);
+                }
+            } else if (!term.isEmpty()) {
+                query.add(new TermQuery(new Term(LEMMA_FIELD, term)), Occur.MUST);
+            }
+        }
+        if (startDate != null || endDate != null) {
+            Long min = startDate == null ? null : startDate.getTime() / 60000;
+            Long max = endDate == null ? null : endDate.getTime() / 60000;
+            query.add(NumericRangeQuery.newLongRange(TIME_FIELD, min, max, true, true), Occur.MUST);
+        }
+        if (query.clauses().isEmpty()) {
+            query.add(new MatchAllDocsQuery(), Occur.MUST);
+        }
+        return search(query, maxHeadlines);
+    }
+
+    private Result search(Query query, int maxHeadlines) throws IOException {
+        Result r = new Result();
+        Collector counts = new OutletCounts(r);
+        TopFieldCollector latest = null;
+        if (maxHeadlines > 0) {
+            latest = TopFieldCollector.create(new Sort(new SortField(TIME_FIELD, SortField.Type.LONG, true)),
+                            maxHeadlines, false, false, false, false);
+            searcher.search(query, MultiCollector.wrap(counts, latest));
+        } else {
+            searcher.search(query, counts);
+        }
+        if (latest != null) {
+            DateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
+            for (ScoreDoc sd : latest.topDocs().scoreDocs) {
+                Document doc = searcher.doc(sd.doc);
+                Date time = new Date(doc.getField(TIME_FIELD).numericValue().longValue() * 60000);
+                r.latest.add(dateFormat.format(time) + "\t" + doc.get(OUTLET_FIELD) + "\t"
+                                + doc.getField(EPOCHS_FIELD).numericValue() + "\t" + doc.get(RAW_FIELD) + "\t"
+                                + doc.get(LEMMA_FIELD));
+            }
+        }
+        return r;
+    }
+
+    private List<String> analyzed(String field, String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        TokenStream ts = analyzer.tokenStream(field, text);
+        try {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            ts.end();
+        } finally {
+            ts.close();
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds up headlines and epochs per outlet from doc values, without loading the documents.
+     */
+    private static class OutletCounts extends Collector {
+
+        private final Result result;
+        private NumericDocValues outlets;
+        private NumericDocValues epochs;
+
+        OutletCounts(Result iResult) {
+            result = iResult;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+            // not scored
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            outlets = context.reader().getNumericDocValues(OUTLET_FIELD);
+            epochs = context.reader().getNumericDocValues(EPOCHS_FIELD);
+        }
+
+        @Override
+        public void collect(int doc) {
+            int o = (int) outlets.get(doc);
+            result.headlines[o]++;
+            result.epochs[o] += epochs.get(doc);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+
+    }
+
+    public synchronized void close() throws IOException {
+        reader.close();
+        directory.close();
+        analyzer.close();
+    }
+
+}
@@ -0,0 +1,332 @@
+package media_analysis.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import media_analysis.Outlet;
+import media_analysis.utils.Consts;
+import media_analysis.utils.MappedStringTable;
+
+/**
+ * Binary, column-oriented form of the tokenized headline corpus (output of
+ * {@link media_analysis.nlp.AddTokenization}), memory-mapped so that it can be scanned without parsing or allocating.
+ * The header keeps the number of input lines skipped as bad by the conversion. Columns: time changed as minutes
+ * since the epoch, outlet ordinal, epochs survived, and raw and lemmatized tokens as
+ * IDs into a dictionary shared by both, with per-headline offsets. Tokens are the space-delimited segments of each
+ * column, so joining them with spaces gives back the original text.
+ * Files: base + {@link #COLUMNS_SUFFIX} for the columns, base + {@link #DICTIONARY_SUFFIX} for the dictionary (a
+ * {@link MappedStringTable}, term ID being the index of the term in it).
+ * @author yuvalp
+ *
+ */
+public class HeadlineStore extends Consts {
+
+    public static final String COLUMNS_SUFFIX = ".cols";
+    public static final String DICTIONARY_SUFFIX = ".dict";
+    private static final int MAGIC = 0x48534332; // "HSC2"
+    private static final int HEADER_INTS = 5;
+
+    private final MappedStringTable dictionary;
+    private final int size;
+    private final int badLines;
+    private final IntBuffer minutes;
+    private final IntBuffer epochs;
+    private final IntBuffer rawOffsets;
+    private final IntBuffer lemOffsets;
+    private final IntBuffer rawTokens;
+    private final IntBuffer lemTokens;
+    private final ByteBuffer outlets;
+
+    public HeadlineStore(String base) throws IOException {
+        dictionary = new MappedStringTable(new File(base + DICTIONARY_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(base + COLUMNS_SUFFIX, "r");
+        ByteBuffer buf;
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a headline store, or one converted by an older version: " + base);
+        }
+        size = buf.getInt(4);
+        int numOfRawTokens = buf.getInt(8);
+        int numOfLemTokens = buf.getInt(12);
+        badLines = buf.getInt(16);
+        int pos = 4 * HEADER_INTS;
+        minutes = ints(buf, pos, size);
+        pos += 4 * size;
+        epochs = ints(buf, pos, size);
+        pos += 4 * size;
+        rawOffsets = ints(buf, pos, size + 1);
+        pos += 4 * (size + 1);
+        lemOffsets = ints(buf, pos, size + 1);
+        pos += 4 * (size + 1);
+        rawTokens = ints(buf, pos, numOfRawTokens);
+        pos += 4 * numOfRawTokens;
+        lemTokens = ints(buf, pos, numOfLemTokens);
+        pos += 4 * numOfLemTokens;
+        buf.position(pos);
+        outlets = buf.slice();
+    }
+
+    private static IntBuffer ints(ByteBuffer buf, int pos, int length) {
+        buf.position(pos);
+        ByteBuffer slice = buf.slice();
+        slice.limit(4 * length);
+        return slice.asIntBuffer();
+    }
+
+    /**
+     * @return whether the location is the base of a converted store that is no older than the text file at the same
+     *         location, if there is one; a stale store is reported and ignored
+     */
+    public static boolean exists(String base) {
+        File columns = new File(base + COLUMNS_SUFFIX);
+        File dictionary = new File(base + DICTIONARY_SUFFIX);
+        if (!columns.isFile() || !dictionary.isFile()) {
+            return false;
+        }
+        File text = new File(base);
+        if (text.isFile() && Math.min(columns.lastModified(), dictionary.lastModified()) < text.lastModified()) {
+            System.out.println("Ignoring " + columns + ", older than " + text + "; reconvert it with HeadlineStore");
+            return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of input lines the conversion skipped, for lacking columns or having a bad date
+     */
+    public int badLines() {
+        return badLines;
+    }
+
+    /**
+     * @return time changed, in minutes since the epoch
+     */
+    public int minute(int headline) {
+        return minutes.get(headline);
+    }
+
+    public Date date(int headline) {
+        return new Date(minute(headline) * 60000L);
+    }
+
+    public Outlet outlet(int headline) {
+        return Outlet.values()[outlets.get(headline)];
+    }
+
+    public int outletOrdinal(int headline) {
+        return outlets.get(headline);
+    }
+
+    public int epochs(int headline) {
+        return epochs.get(headline);
+    }
+
+    public int numOfRawTokens(int headline) {
+        return rawOffsets.get(headline + 1) - rawOffsets.get(headline);
+    }
+
+    public int rawToken(int headline, int token) {
+        return rawTokens.get(rawOffsets.get(headline) + token);
+    }
+
+    public int numOfLemmata(int headline) {
+        return lemOffsets.get(headline + 1) - lemOffsets.get(headline);
+    }
+
+    public int lemma(int headline, int token) {
+        return lemTokens.get(lemOffsets.get(headline) + token);
+    }
+
+    public int numOfTerms() {
+        return dictionary.size();
+    }
+
+    public String term(int id) {
+        return dictionary.keyAt(id);
+    }
+
+    /**
+     * @return ID of the term, or -1 if it does not appear in the corpus
+     */
+    public int termId(String term) {
+        return dictionary.indexOf(term);
+    }
+
+    public String raw(int headline) {
+        return join(rawTokens, rawOffsets.get(headline), rawOffsets.get(headline + 1));
+    }
+
+    public String lemmatized(int headline) {
+        return join(lemTokens, lemOffsets.get(headline), lemOffsets.get(headline + 1));
+    }
+
+    private String join(IntBuffer tokens, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int t = from; t < to; t++) {
+            if (t > from) {
+                sb.append(' ');
+            }
+            sb.append(term(tokens.get(t)));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: HeadlineStore <tokenized-headlines-location> <out-base>");
+            return;
+        }
+        convert(args[0], args[1]);
+    }
+
+    /**
+     * Converts the tokenized headlines text file; lines without all five columns or with a bad date are skipped.
+     */
+    public static void convert(String inLocation, String outBase) throws IOException {
+        DateFormat sourceDataFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
+        Map<String, Integer> tempIds = new HashMap<>();
+        List<String> terms = new ArrayList<>();
+        IntList minutes = new IntList();
+        IntList epochs = new IntList();
+        IntList outlets = new IntList();
+        IntList rawOffsets = new IntList();
+        IntList lemOffsets = new IntList();
+        IntList rawTokens = new IntList();
+        IntList lemTokens = new IntList();
+        rawOffsets.add(0);
+        lemOffsets.add(0);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(inLocation), "UTF8"));
+        String line = in.readLine();
+        int badLineInputs = 0;
+        while (line != null) {
+            // time-changed \t outlet \t epochs \t raw \t lemmatized
+            String[] columns = line.split("\\t");
+            line = in.readLine();
+            if (columns.length != 5) {
+                badLineInputs++;
+                continue;
+            }
+            try {
+                minutes.add((int) (sourceDataFormat.parse(columns[0]).getTime() / 60000L));
+            } catch (ParseException e) {
+                badLineInputs++;
+                continue;
+            }
+            outlets.add(Outlet.valueOf(columns[1]).ordinal());
+            epochs.add(Integer.parseInt(columns[2]));
+            addTokens(columns[3], rawTokens, tempIds, terms);
+            rawOffsets.add(rawTokens.size);
+            addTokens(columns[4], lemTokens, tempIds, terms);
+            lemOffsets.add(lemTokens.size);
+        }
+        in.close();
+
+        Map<String, String> dictEntries = new HashMap<>();
+        for (String term : terms) {
+            dictEntries.put(term, "");
+        }
+        MappedStringTable.writeStrings(new File(outBase + DICTIONARY_SUFFIX), dictEntries);
+        MappedStringTable dictionary = new MappedStringTable(new File(outBase + DICTIONARY_SUFFIX));
+        int[] finalIds = new int[terms.size()];
+        for (int t = 0; t < finalIds.length; t++) {
+            finalIds[t] = dictionary.indexOf(terms.get(t));
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outBase
+                        + COLUMNS_SUFFIX)));
+        out.writeInt(MAGIC);
+        out.writeInt(minutes.size);
+        out.writeInt(rawTokens.size);
+        out.writeInt(lemTokens.size);
+        out.writeInt(badLineInputs);
+        minutes.writeTo(out, null);
+        epochs.writeTo(out, null);
+        rawOffsets.writeTo(out, null);
+        lemOffsets.writeTo(out, null);
+        rawTokens.writeTo(out, finalIds);
+        lemTokens.writeTo(out, finalIds);
+        for (int i = 0; i < outlets.size; i++) {
+            out.writeByte(outlets.values[i]);
+        }
+        out.flush();
+        out.close();
+
+        System.out.println("Done! Converted " + minutes.size + " headlines with " + terms.size() + " terms, "
+                        + badLineInputs + " bad inputs.");
+    }
+
+    /**
+     * Adds IDs of all space-delimited segments, empty ones included.
+     */
+    private static void addTokens(String text, IntList tokens, Map<String, Integer> tempIds, List<String> terms) {
+        int from = 0;
+        while (from <= text.length()) {
+            int space = text.indexOf(' ', from);
+            if (space < 0) {
+                space = text.length();
+            }
+            String term = text.substring(from, space);
+            Integer id = tempIds.get(term);
+            if (id == null) {
+                id = terms.size();
+                tempIds.put(term, id);
+                terms.add(term);
+            }
+            tokens.add(id);
+            from = space + 1;
+        }
+    }
+
+    /**
+     * Growable primitive int array.
+     */
+    private static class IntList {
+
+        int[] values = new int[1 << 10];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        void writeTo(DataOutputStream out, int[] mapping) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(mapping == null ? values[i] : mapping[values[i]]);
+            }
+        }
+
+    }
+
+}
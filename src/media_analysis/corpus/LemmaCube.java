@@ -0,0 +1,516 @@
+package media_analysis.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import media_analysis.Configuration;
+import media_analysis.Outlet;
+import media_analysis.utils.Consts;
+import media_analysis.utils.MappedStringTable;
+import media_analysis.utils.Metrics;
+
+/**
+ * Lemma counts of the tokenized headline corpus per time bucket (a day, or a given number of hours, in local time),
+ * outlet and lemma, as running sums over the buckets, so that a lemma's count over any date range is the difference
+ * of two sums found by binary search. Top lemmata of any outlet and date range, e.g. the top 50 of a month, thus take
+ * time proportional to the number of lemmata and outlets, not to the size of the corpus, and come out in
+ * {@link media_analysis.nlp.FreqCounter}'s format, to be used as a lemma vocabulary by the feature extractor.
+ * Files: base + {@link #COUNTS_SUFFIX} for the counts, base + {@link #DICTIONARY_SUFFIX} for the lemmata (a
+ * {@link MappedStringTable}, lemma ID being the index of the lemma in it). Counts are kept only for the buckets a
+ * lemma appears in: per lemma and outlet, the buckets in order, each with the lemma's count up to and including it.
+ * Empty lemmata, which {@link media_analysis.nlp.FreqCounter} does count, are left out.
+ * @author yuvalp
+ *
+ */
+public class LemmaCube extends Consts {
+
+    public static final String COUNTS_SUFFIX = ".cube";
+    public static final String DICTIONARY_SUFFIX = ".lemmata";
+    private static final int MAGIC = 0x4c435531; // "LCU1"
+    private static final int HEADER_INTS = 7;
+    private static final int DEFAULT_BUCKET_HOURS = 24;
+    private static final int DEFAULT_TOP_K = 50;
+
+    private static final String STAGE = "cube";
+    private static final AtomicLong linesMetric = Metrics.items(STAGE);
+    private static final AtomicLong badLinesMetric = Metrics.failures(STAGE, "", "bad-line");
+
+    private final MappedStringTable dictionary;
+    private final int bucketHours;
+    private final int numOfOutlets;
+    private final int firstBucket;
+    private final int lastBucket;
+    /** Per lemma and outlet (lemma * outlets + outlet), where its entries start */
+    private final IntBuffer offsets;
+    private final IntBuffer buckets;
+    private final IntBuffer sums;
+
+    public LemmaCube(String base) throws IOException {
+        dictionary = new MappedStringTable(new File(base + DICTIONARY_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(base + COUNTS_SUFFIX, "r");
+        ByteBuffer buf;
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a lemma cube: " + base);
+        }
+        bucketHours = buf.getInt(4);
+        numOfOutlets = buf.getInt(8);
+        int numOfLemmata = buf.getInt(12);
+        int numOfEntries = buf.getInt(16);
+        firstBucket = buf.getInt(20);
+        lastBucket = buf.getInt(24);
+        if (numOfOutlets != Outlet.values().length || numOfLemmata != dictionary.size()) {
+            throw new IOException("Lemma cube does not match its dictionary or the outlets: " + base);
+        }
+        int pos = 4 * HEADER_INTS;
+        offsets = ints(buf, pos, numOfLemmata * numOfOutlets + 1);
+        pos += 4 * (numOfLemmata * numOfOutlets + 1);
+        buckets = ints(buf, pos, numOfEntries);
+        pos += 4 * numOfEntries;
+        sums = ints(buf, pos, numOfEntries);
+    }
+
+    private static IntBuffer ints(ByteBuffer buf, int pos, int length) {
+        buf.position(pos);
+        ByteBuffer slice = buf.slice();
+        slice.limit(4 * length);
+        return slice.asIntBuffer();
+    }
+
+    public static void main(String[] args) throws IOException, ParseException {
+        if (args.length < 3 || !Arrays.asList("build", "top", "months").contains(args[0])) {
+            System.out.println("Usage: LemmaCube build <tokenized-headlines-location> <cube-base> [bucket-hours]");
+            System.out.println("       LemmaCube top <cube-base> <start-date> <end-date> [top-k] [out-location]");
+            System.out.println("       LemmaCube months <cube-base> <out-base> [top-k]");
+            System.out.println("Dates in " + Configuration.DATE_PATTERN + " format, inclusive");
+            return;
+        }
+        Metrics.startExport();
+        if (args[0].equals("build")) {
+            build(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BUCKET_HOURS);
+        } else if (args[0].equals("top")) {
+            DateFormat df = new SimpleDateFormat(Configuration.DATE_PATTERN, Locale.ENGLISH);
+            LemmaCube cube = new LemmaCube(args[1]);
+            Date startDate = df.parse(args[2]);
+            Date endDate = df.parse(args[3]);
+            int topK = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_TOP_K;
+            Writer out = new BufferedWriter(args.length > 5 ? new OutputStreamWriter(new FileOutputStream(args[5]),
+                            "UTF8") : new OutputStreamWriter(System.out, "UTF8"));
+            long start = System.nanoTime();
+            cube.writeTop(out, startDate, endDate, topK);
+            out.flush();
+            if (args.length > 5) {
+                out.close();
+            }
+            System.out.println(String.format(Locale.ENGLISH, "Top %d lemmata of %s to %s in %.1f ms", topK, args[2],
+                            args[3], (System.nanoTime() - start) / 1e6));
+        } else {
+            LemmaCube cube = new LemmaCube(args[1]);
+            cube.writeMonths(args[2], args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_TOP_K);
+        }
+        Metrics.finish();
+        System.out.println("Done!");
+    }
+
+    /**
+     * @return bucket of the time, in local time
+     */
+    private static int bucket(long millis, int bucketHours) {
+        return (int) ((millis + TimeZone.getDefault().getOffset(millis)) / (bucketHours * 3600000L));
+    }
+
+    /**
+     * Counts the lemmata of a tokenized headlines file or a converted {@link HeadlineStore}; lines without all five
+     * columns or with a bad date are skipped.
+     */
+    public static void build(String inLocation, String outBase, int bucketHours) throws IOException {
+        Builder builder = new Builder(bucketHours);
+        int badLineInputs = 0;
+        if (HeadlineStore.exists(inLocation)) {
+            HeadlineStore store = new HeadlineStore(inLocation);
+            for (int h = 0; h < store.size(); h++) {
+                builder.add(store.minute(h) * 60000L, store.outletOrdinal(h), store.lemmatized(h));
+                linesMetric.incrementAndGet();
+            }
+            badLineInputs = store.badLines();
+        } else {
+            DateFormat sourceDataFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(inLocation), "UTF8"));
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    linesMetric.incrementAndGet();
+                    // time-changed \t outlet \t epochs \t raw \t lemmatized
+                    String[] columns = line.split("\\t");
+                    line = in.readLine();
+                    if (columns.length != 5) {
+                        badLineInputs++;
+                        badLinesMetric.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        builder.add(sourceDataFormat.parse(columns[0]).getTime(), Outlet.valueOf(columns[1])
+                                        .ordinal(), columns[4]);
+                    } catch (ParseException | IllegalArgumentException e) {
+                        badLineInputs++;
+                        badLinesMetric.incrementAndGet();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        int entries = builder.write(outBase);
+        System.out.println("Built a cube of " + builder.lemmata.size() + " lemmata in " + entries
+                        + " (bucket, outlet, lemma) counts from " + builder.headlines + " headlines, "
+                        + badLineInputs + " bad inputs.");
+    }
+
+    /**
+     * Bucket counts of one lemma in one outlet, in the order headlines came.
+     */
+    private static class Series {
+
+        /** bucket << 32 | count */
+        long[] entries = new long[2];
+        int size = 0;
+
+        void add(int bucket) {
+            if (size > 0 && (int) (entries[size - 1] >>> 32) == bucket) {
+                entries[size - 1]++;
+                return;
+            }
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = ((long) bucket << 32) | 1;
+        }
+
+        /**
+         * Sorts by bucket and merges entries of the same bucket, in case headlines were not in time order.
+         */
+        void normalize() {
+            Arrays.sort(entries, 0, size);
+            int merged = 0;
+            for (int i = 0; i < size; i++) {
+                if (merged > 0 && entries[merged - 1] >>> 32 == entries[i] >>> 32) {
+                    entries[merged - 1] += entries[i] & 0xFFFFFFFFL;
+                } else {
+                    entries[merged++] = entries[i];
+                }
+            }
+            size = merged;
+        }
+
+    }
+
+    private static class Builder {
+
+        final int bucketHours;
+        final Map<String, Integer> tempIds = new HashMap<>();
+        final List<String> lemmata = new ArrayList<>();
+        /** Per temporary lemma ID, by outlet */
+        final List<Series[]> series = new ArrayList<>();
+        int firstBucket = Integer.MAX_VALUE;
+        int lastBucket = Integer.MIN_VALUE;
+        int headlines = 0;
+
+        Builder(int iBucketHours) {
+            bucketHours = iBucketHours;
+        }
+
+        void add(long millis, int outlet, String lemmatized) {
+            int bucket = bucket(millis, bucketHours);
+            firstBucket = Math.min(firstBucket, bucket);
+            lastBucket = Math.max(lastBucket, bucket);
+            int from = 0;
+            while (from <= lemmatized.length()) {
+                int space = lemmatized.indexOf(' ', from);
+                if (space < 0) {
+                    space = lemmatized.length();
+                }
+                if (space > from) {
+                    String lemma = lemmatized.substring(from, space);
+                    Integer id = tempIds.get(lemma);
+                    if (id == null) {
+                        id = lemmata.size();
+                        tempIds.put(lemma, id);
+                        lemmata.add(lemma);
+                        series.add(new Series[Outlet.values().length]);
+                    }
+                    Series[] byOutlet = series.get(id);
+                    if (byOutlet[outlet] == null) {
+                        byOutlet[outlet] = new Series();
+                    }
+                    byOutlet[outlet].add(bucket);
+                }
+                from = space + 1;
+            }
+            headlines++;
+        }
+
+        /**
+         * @return number of entries written
+         */
+        int write(String outBase) throws IOException {
+            Map<String, String> dictEntries = new HashMap<>();
+            for (String lemma : lemmata) {
+                dictEntries.put(lemma, "");
+            }
+            MappedStringTable.writeStrings(new File(outBase + DICTIONARY_SUFFIX), dictEntries);
+            MappedStringTable dictionary = new MappedStringTable(new File(outBase + DICTIONARY_SUFFIX));
+            // series in final ID order
+            Series[][] ordered = new Series[lemmata.size()][];
+            for (int t = 0; t < lemmata.size(); t++) {
+                ordered[dictionary.indexOf(lemmata.get(t))] = series.get(t);
+            }
+
+            int numOfOutlets = Outlet.values().length;
+            int numOfEntries = 0;
+            for (Series[] byOutlet : ordered) {
+                for (Series s : byOutlet) {
+                    if (s != null) {
+                        s.normalize();
+                        numOfEntries += s.size;
+                    }
+                }
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outBase
+                            + COUNTS_SUFFIX)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(bucketHours);
+                out.writeInt(numOfOutlets);
+                out.writeInt(ordered.length);
+                out.writeInt(numOfEntries);
+                out.writeInt(headlines == 0 ? 0 : firstBucket);
+                out.writeInt(headlines == 0 ? -1 : lastBucket);
+                int offset = 0;
+                for (Series[] byOutlet : ordered) {
+                    for (Series s : byOutlet) {
+                        out.writeInt(offset);
+                        offset += s == null ? 0 : s.size;
+                    }
+                }
+                out.writeInt(offset);
+                for (Series[] byOutlet : ordered) {
+                    for (Series s : byOutlet) {
+                        for (int i = 0; s != null && i < s.size; i++) {
+                            out.writeInt((int) (s.entries[i] >>> 32));
+                        }
+                    }
+                }
+                for (Series[] byOutlet : ordered) {
+                    for (Series s : byOutlet) {
+                        int sum = 0;
+                        for (int i = 0; s != null && i < s.size; i++) {
+                            sum += (int) s.entries[i];
+                            out.writeInt(sum);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            return numOfEntries;
+        }
+
+    }
+
+    public int numOfLemmata() {
+        return dictionary.size();
+    }
+
+    public String lemma(int id) {
+        return dictionary.keyAt(id);
+    }
+
+    /**
+     * @return ID of the lemma, or -1 if it does not appear in the corpus
+     */
+    public int lemmaId(String lemma) {
+        return dictionary.indexOf(lemma);
+    }
+
+    /**
+     * @return bucket of the start of the date's day
+     */
+    public int startBucket(Date date) {
+        return bucket(date.getTime(), bucketHours);
+    }
+
+    /**
+     * @return bucket of the end of the date's day
+     */
+    public int endBucket(Date date) {
+        Calendar nextDay = Calendar.getInstance();
+        nextDay.setTime(date);
+        nextDay.add(Calendar.DAY_OF_MONTH, 1);
+        return bucket(nextDay.getTimeInMillis() - 1, bucketHours);
+    }
+
+    /**
+     * @param from first bucket
+     * @param to last bucket, inclusive
+     * @return number of times the lemma appears in the outlet's headlines of the buckets
+     */
+    public int count(int lemma, int outlet, int from, int to) {
+        int key = lemma * numOfOutlets + outlet;
+        int start = offsets.get(key);
+        int end = offsets.get(key + 1);
+        return sumUpTo(start, end, to) - sumUpTo(start, end, from - 1);
+    }
+
+    /**
+     * @return running sum of the last of the entries with a bucket up to the given one, 0 if none
+     */
+    private int sumUpTo(int start, int end, int bucket) {
+        // first entry past the bucket
+        int lo = start;
+        int hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buckets.get(mid) <= bucket) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == start ? 0 : sums.get(lo - 1);
+    }
+
+    /**
+     * @param outlets ordinals of the outlets to add up
+     * @param counts filled with the count of each lemma ID, if not null
+     * @return IDs of the k most frequent lemmata, most frequent first, ties by ID
+     */
+    public int[] top(int[] outlets, int from, int to, int k, int[] counts) {
+        // least frequent of the top at the head
+        PriorityQueue<long[]> top = new PriorityQueue<>(Math.max(1, k), new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]);
+            }
+
+        });
+        for (int l = 0; l < numOfLemmata(); l++) {
+            int count = 0;
+            for (int o : outlets) {
+                count += count(l, o, from, to);
+            }
+            if (counts != null) {
+                counts[l] = count;
+            }
+            if (count == 0 || k == 0) {
+                continue;
+            }
+            if (top.size() < k) {
+                top.add(new long[] { count, l });
+            } else if (count > top.peek()[0]) {
+                top.poll();
+                top.add(new long[] { count, l });
+            }
+        }
+        int[] ids = new int[top.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = (int) top.poll()[1];
+        }
+        return ids;
+    }
+
+    /**
+     * Writes the top lemmata of each outlet and of all of them over the date range, in
+     * {@link media_analysis.nlp.FreqCounter}'s format.
+     * @param endDate inclusive
+     */
+    public void writeTop(Writer out, Date startDate, Date endDate, int k) throws IOException {
+        writeTop(out, startBucket(startDate), endBucket(endDate), k);
+    }
+
+    private void writeTop(Writer out, int from, int to, int k) throws IOException {
+        int[] counts = new int[numOfLemmata()];
+        int[] all = new int[numOfOutlets];
+        for (Outlet o : Outlet.values()) {
+            all[o.ordinal()] = o.ordinal();
+            out.append(o + ":\n");
+            writeSection(out, top(new int[] { o.ordinal() }, from, to, k, counts), counts);
+            out.append("\n");
+        }
+        out.append("ALL:\n");
+        writeSection(out, top(all, from, to, k, counts), counts);
+    }
+
+    private void writeSection(Writer out, int[] ids, int[] counts) throws IOException {
+        for (int id : ids) {
+            out.append(lemma(id) + "\t" + counts[id] + "\n");
+        }
+        long total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        out.append("TOTAL\t" + total + "\n");
+        out.append("--------\n");
+    }
+
+    /**
+     * Writes the top lemmata of each month the cube covers to out-base-yyyy-MM-top-k-lemmata.txt.
+     */
+    public void writeMonths(String outBase, int k) throws IOException {
+        if (lastBucket < firstBucket) {
+            return;
+        }
+        DateFormat monthFormat = new SimpleDateFormat("yyyy-MM", Locale.ENGLISH);
+        // buckets count local time from the epoch, so their start reads as the local date in UTC
+        Calendar first = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        first.setTimeInMillis(firstBucket * bucketHours * 3600000L);
+        Calendar month = Calendar.getInstance();
+        month.clear();
+        month.set(first.get(Calendar.YEAR), first.get(Calendar.MONTH), 1);
+        while (startBucket(month.getTime()) <= lastBucket) {
+            Date start = month.getTime();
+            month.add(Calendar.MONTH, 1);
+            String location = outBase + "-" + monthFormat.format(start) + "-top" + k + "-lemmata.txt";
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(location), "UTF8"));
+            try {
+                writeTop(out, startBucket(start), startBucket(month.getTime()) - 1, k);
+            } finally {
+                out.close();
+            }
+            System.out.println("Wrote the top " + k + " lemmata of " + monthFormat.format(start) + " to " + location);
+        }
+    }
+
+}
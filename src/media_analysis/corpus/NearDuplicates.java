@@ -0,0 +1,354 @@
+package media_analysis.corpus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import media_analysis.Outlet;
+import media_analysis.utils.Consts;
+import media_analysis.utils.Metrics;
+
+/**
+ * Finds headlines that nearly repeat an earlier one (an edited word, digit or punctuation mark), within a time window
+ * and either within each outlet or across outlets. Headlines are compared as sets of lemmata: each gets a MinHash
+ * signature, whose bands index it in an LSH table, and only headlines sharing a band with it are compared exactly, so
+ * the cost per headline does not grow with the corpus.
+ * Headlines are expected in time order, as in the headline files, so that those out of the window can be dropped
+ * from the index as it goes; out of order ones are still only matched within the window.
+ * @author yuvalp
+ *
+ */
+public class NearDuplicates extends Consts {
+
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    public static final int DEFAULT_WINDOW_HOURS = 48;
+    public static final String DUPLICATES_SUFFIX = ".dups";
+
+    // 16 bands of 4 make headlines half similar likely candidates, and 0.7 similar ones almost certain
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = new long[BANDS * ROWS];
+    static {
+        long s = 0x5DEECE66DL;
+        for (int i = 0; i < SEEDS.length; i++) {
+            s = mix(s + i);
+            SEEDS[i] = s;
+        }
+    }
+
+    private static final String STAGE = "near-duplicates";
+    private static final AtomicLong linesMetric = Metrics.items(STAGE);
+    private static final AtomicLong badLinesMetric = Metrics.failures(STAGE, "", "bad-line");
+
+    /**
+     * An earlier headline found to be nearly the same as the one just added.
+     */
+    public static class Duplicate {
+
+        /** As given when added */
+        public final long originalId;
+        public final Outlet originalOutlet;
+        /** Jaccard similarity of the lemma sets */
+        public final double similarity;
+
+        Duplicate(long iOriginalId, Outlet iOriginalOutlet, double iSimilarity) {
+            originalId = iOriginalId;
+            originalOutlet = iOriginalOutlet;
+            similarity = iSimilarity;
+        }
+
+    }
+
+    private static class Entry {
+
+        final long minute;
+        final Outlet outlet;
+        /** Sorted, distinct lemma hashes */
+        final long[] lemmata;
+        final long[] bandKeys;
+        /** The first of the headlines this one nearly repeats, or this one's ID */
+        final long originalId;
+        final Outlet originalOutlet;
+        int lastQuery = -1;
+
+        Entry(long iMinute, Outlet iOutlet, long[] iLemmata, long[] iBandKeys, long iOriginalId,
+                        Outlet iOriginalOutlet) {
+            minute = iMinute;
+            outlet = iOutlet;
+            lemmata = iLemmata;
+            bandKeys = iBandKeys;
+            originalId = iOriginalId;
+            originalOutlet = iOriginalOutlet;
+        }
+
+    }
+
+    private final long windowMinutes;
+    private final double threshold;
+    private final boolean acrossOutlets;
+    private final Map<Long, ArrayDeque<Entry>> buckets = new HashMap<>();
+    /** Indexed entries, in the order added */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int queries = 0;
+
+    /**
+     * @param windowHours how far apart duplicates may be, 0 or less for no limit (and an index over all of the input)
+     * @param iThreshold minimal Jaccard similarity of the lemma sets
+     * @param iAcrossOutlets whether a headline may duplicate another outlet's
+     */
+    public NearDuplicates(int windowHours, double iThreshold, boolean iAcrossOutlets) {
+        windowMinutes = windowHours > 0 ? windowHours * 60L : Long.MAX_VALUE;
+        threshold = iThreshold;
+        acrossOutlets = iAcrossOutlets;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: NearDuplicates <in-location> <out-location> [window-hours] [threshold] "
+                            + "[across-outlets]");
+            return;
+        }
+        Metrics.startExport();
+        int windowHours = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WINDOW_HOURS;
+        double threshold = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_THRESHOLD;
+        boolean acrossOutlets = args.length > 4 && Boolean.parseBoolean(args[4]);
+        NearDuplicates nearDuplicates = new NearDuplicates(windowHours, threshold, acrossOutlets);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF8"));
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF8"));
+        Writer dups = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1] + DUPLICATES_SUFFIX),
+                        "UTF8"));
+        int[] counts;
+        try {
+            counts = nearDuplicates.collapse(in, out, dups);
+        } finally {
+            in.close();
+            out.close();
+            dups.close();
+        }
+        System.out.println("Done! Kept " + counts[0] + " headlines, dropped " + counts[1]
+                        + " near duplicates (listed in " + args[1] + DUPLICATES_SUFFIX + ") and " + counts[2]
+                        + " bad lines");
+        Metrics.finish();
+    }
+
+    /**
+     * Copies tokenized headline lines, but for near duplicates of earlier ones, which are listed instead as:
+     * line number \tab original's line number \tab original's outlet \tab similarity \tab the line.
+     * @return numbers of headlines kept, duplicates and bad lines
+     */
+    public int[] collapse(BufferedReader in, Writer out, Writer dups) throws IOException {
+        DateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
+        int kept = 0;
+        int duplicates = 0;
+        int badLines = 0;
+        long lineNumber = 0;
+        String line = in.readLine();
+        while (line != null) {
+            lineNumber++;
+            linesMetric.incrementAndGet();
+            // time-changed \t outlet \t epochs \t raw \t lemmatized
+            String[] columns = line.split("\\t");
+            Duplicate d = null;
+            try {
+                if (columns.length == 5) {
+                    d = add(lineNumber, dateFormat.parse(columns[0]).getTime() / 60000, Outlet.valueOf(columns[1]),
+                                    columns[4]);
+                } else {
+                    badLines++;
+                    badLinesMetric.incrementAndGet();
+                }
+            } catch (ParseException | IllegalArgumentException e) {
+                // kept as is
+                badLines++;
+                badLinesMetric.incrementAndGet();
+            }
+            if (d == null) {
+                out.write(line);
+                out.write("\n");
+                kept++;
+            } else {
+                dups.write(lineNumber + "\t" + d.originalId + "\t" + d.originalOutlet + "\t"
+                                + String.format(Locale.ENGLISH, "%.3f", d.similarity) + "\t" + line + "\n");
+                duplicates++;
+            }
+            if (lineNumber % 100000 == 0) {
+                System.out.println("Went over " + lineNumber + " headlines, " + duplicates + " near duplicates");
+            }
+            line = in.readLine();
+        }
+        return new int[] { kept, duplicates, badLines };
+    }
+
+    /**
+     * Indexes a headline, after looking it up among the earlier ones still in the window.
+     * @param id to report when a later headline duplicates this one, e.g. its line number
+     * @param minute time changed, in minutes since the epoch
+     * @param lemmatized space-delimited lemmata
+     * @return the most similar earlier headline over the threshold (reported by its own original, if it is itself a
+     *         duplicate), or null if none or the headline has no lemmata
+     */
+    public Duplicate add(long id, long minute, Outlet outlet, String lemmatized) {
+        long[] lemmata = lemmaHashes(lemmatized);
+        if (lemmata.length == 0) {
+            return null;
+        }
+        while (!entries.isEmpty() && entries.peekFirst().minute < minute - windowMinutes) {
+            evict(entries.pollFirst());
+        }
+
+        long[] bandKeys = bandKeys(lemmata);
+        int query = queries++;
+        Entry best = null;
+        double bestSimilarity = 0.0;
+        for (long key : bandKeys) {
+            ArrayDeque<Entry> bucket = buckets.get(key);
+            if (bucket == null) {
+                continue;
+            }
+            for (Entry e : bucket) {
+                if (e.lastQuery == query) {
+                    continue;
+                }
+                e.lastQuery = query;
+                if ((!acrossOutlets && e.outlet != outlet) || Math.abs(minute - e.minute) > windowMinutes) {
+                    continue;
+                }
+                double similarity = jaccard(lemmata, e.lemmata);
+                if (similarity >= threshold && similarity > bestSimilarity) {
+                    best = e;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+
+        // duplicates are indexed too, so that a headline edited again and again is still caught
+        Entry added = best == null ? new Entry(minute, outlet, lemmata, bandKeys, id, outlet) : new Entry(minute,
+                        outlet, lemmata, bandKeys, best.originalId, best.originalOutlet);
+        entries.addLast(added);
+        for (long key : bandKeys) {
+            ArrayDeque<Entry> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>(2);
+                buckets.put(key, bucket);
+            }
+            bucket.addLast(added);
+        }
+        return best == null ? null : new Duplicate(best.originalId, best.originalOutlet, bestSimilarity);
+    }
+
+    private void evict(Entry e) {
+        for (long key : e.bandKeys) {
+            ArrayDeque<Entry> bucket = buckets.get(key);
+            // buckets fill in the order entries are added, which is the order they leave in
+            if (bucket.peekFirst() == e) {
+                bucket.pollFirst();
+            } else {
+                bucket.remove(e);
+            }
+            if (bucket.isEmpty()) {
+                buckets.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return number of headlines in the index
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static long[] lemmaHashes(String lemmatized) {
+        long[] hashes = new long[lemmatized.length() / 2 + 1];
+        int n = 0;
+        int start = 0;
+        while (start <= lemmatized.length()) {
+            int end = lemmatized.indexOf(' ', start);
+            if (end < 0) {
+                end = lemmatized.length();
+            }
+            if (end > start) {
+                // FNV-1a
+                long h = 0xcbf29ce484222325L;
+                for (int i = start; i < end; i++) {
+                    h = (h ^ lemmatized.charAt(i)) * 0x100000001b3L;
+                }
+                hashes[n++] = h;
+            }
+            start = end + 1;
+        }
+        Arrays.sort(hashes, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        return Arrays.copyOf(hashes, distinct);
+    }
+
+    private static long[] bandKeys(long[] lemmata) {
+        long[] keys = new long[BANDS];
+        for (int b = 0; b < BANDS; b++) {
+            long key = b;
+            for (int r = 0; r < ROWS; r++) {
+                long seed = SEEDS[b * ROWS + r];
+                long min = Long.MAX_VALUE;
+                for (long l : lemmata) {
+                    long h = mix(l ^ seed);
+                    if (h < min) {
+                        min = h;
+                    }
+                }
+                key = key * 0x9E3779B97F4A7C15L + min;
+            }
+            keys[b] = mix(key);
+        }
+        return keys;
+    }
+
+    /**
+     * @param a sorted, distinct
+     * @param b sorted, distinct
+     */
+    private static double jaccard(long[] a, long[] b) {
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return ((double) common) / (a.length + b.length - common);
+    }
+
+    // splitmix64's finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,306 @@
+package media_analysis.features;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import media_analysis.utils.MappedFreqTable;
+
+/**
+ * Computes the numeric features of a single headline over char ranges of its raw and lemmatized text, into fields and
+ * scratch arrays reused from one headline to the next. Tokens are the same as String.split("\\s+") would return, and
+ * every value is computed in the same order of operations as the String-based code it replaces, so results are
+ * identical. Not thread safe.
+ * @author yuvalp
+ *
+ */
+class FeatureKernel {
+
+    static final String HEB_LETTERS = "אבגדהוזחטיכךלמםנןסעפףצץקרשת";
+    private static final Pattern punctPattern = Pattern.compile("^[\\p{Punct}\\|–]+$");
+
+    private static final boolean[] PUNCT = new boolean[Character.MAX_VALUE + 1];
+    /** Index of each Hebrew letter in {@link #HEB_LETTERS}, -1 for other chars */
+    private static final byte[] HEB_LETTER_INDEX = new byte[Character.MAX_VALUE + 1];
+    static {
+        Arrays.fill(HEB_LETTER_INDEX, (byte) -1);
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            PUNCT[c] = punctPattern.matcher(Character.toString((char) c)).matches();
+        }
+        for (int l = 0; l < HEB_LETTERS.length(); l++) {
+            HEB_LETTER_INDEX[HEB_LETTERS.charAt(l)] = (byte) l;
+        }
+    }
+
+    private final MappedFreqTable wordFreqTable;
+    private final MappedFreqTable lemmaFreqTable;
+    private final LemmaVocabulary vocabulary;
+
+    // token boundaries and per-token scratch values, grown as needed
+    private int[] wordStarts = new int[64];
+    private int[] wordEnds = new int[64];
+    private int[] lemStarts = new int[64];
+    private int[] lemEnds = new int[64];
+    private double[] wordLogFreqs = new double[64];
+    private double[] lemLogFreqs = new double[64];
+    private int[] wordLengths = new int[64];
+
+    int numOfChars;
+    int numOfPuncts;
+    int numOfWords;
+    int numOfLemmata;
+    double avgWordLogFreq;
+    double minWordLogFreq;
+    double medWordLogFreq;
+    double maxWordLogFreq;
+    double avgWordLength;
+    int minWordLength;
+    int medWordLength;
+    int maxWordLength;
+    double avgLemmaLogFreq;
+    double minLemmaLogFreq;
+    double medLemmaLogFreq;
+    double maxLemmaLogFreq;
+    /** Per letter of {@link #HEB_LETTERS} */
+    final int[] affixLetters = new int[HEB_LETTERS.length()];
+    int totalAffixLetters;
+    boolean alignmentFailed;
+    /** Per {@link LemmaVocabulary} ID, only if counted; zero but for {@link #lemmaIds} */
+    final int[] lemmaCounts;
+    /** IDs of the vocabulary found among the lemmata, ascending */
+    int[] lemmaIds = new int[64];
+    int numOfLemmaIds;
+
+    /**
+     * @param vocabulary of lemma features to count, may be null
+     */
+    FeatureKernel(MappedFreqTable wordFreqTable, MappedFreqTable lemmaFreqTable, LemmaVocabulary vocabulary) {
+        this.wordFreqTable = wordFreqTable;
+        this.lemmaFreqTable = lemmaFreqTable;
+        this.vocabulary = vocabulary;
+        lemmaCounts = new int[vocabulary == null ? 0 : vocabulary.size()];
+    }
+
+    static boolean isPunct(char c) {
+        return PUNCT[c];
+    }
+
+    /**
+     * @throws ArrayIndexOutOfBoundsException if the raw title has no words, as the String-based code did
+     */
+    void compute(String rawTitle, String lemTitle) {
+        numOfChars = rawTitle.length();
+        numOfPuncts = countPuncts(rawTitle, 0, numOfChars);
+
+        numOfWords = tokenize(rawTitle, true);
+        numOfLemmata = tokenize(lemTitle, false);
+
+        // word freq, length stats
+        double totalWordLogFreq = 0.0;
+        int totalWordChars = 0;
+        for (int i = 0; i < numOfWords; i++) {
+            int len = wordEnds[i] - wordStarts[i] - countPuncts(rawTitle, wordStarts[i], wordEnds[i]);
+            totalWordChars += len;
+            wordLengths[i] = len;
+            int freq = wordFreqTable.get(rawTitle, wordStarts[i], wordEnds[i], 0);
+            if (freq < 5) {
+                freq = 3;
+            }
+            double logFreq = Math.log(freq);
+            wordLogFreqs[i] = logFreq;
+            totalWordLogFreq += logFreq;
+        }
+        avgWordLogFreq = numOfWords == 0 ? 0.0 : totalWordLogFreq / numOfWords;
+        Arrays.sort(wordLogFreqs, 0, numOfWords);
+        minWordLogFreq = numOfWords == 0 ? 0.0 : wordLogFreqs[0];
+        medWordLogFreq = numOfWords == 0 ? 0.0 : wordLogFreqs[numOfWords / 2];
+        maxWordLogFreq = numOfWords == 0 ? 0.0 : wordLogFreqs[numOfWords - 1];
+
+        avgWordLength = ((double) totalWordChars) / numOfWords;
+        if (numOfWords == 0) {
+            throw new ArrayIndexOutOfBoundsException("No words in " + rawTitle);
+        }
+        Arrays.sort(wordLengths, 0, numOfWords);
+        minWordLength = wordLengths[0];
+        medWordLength = wordLengths[numOfWords / 2];
+        maxWordLength = wordLengths[numOfWords - 1];
+
+        // lemma freq + lemma features
+        double totalLemmaLogFreq = 0.0;
+        for (int i = 0; i < numOfLemmaIds; i++) {
+            lemmaCounts[lemmaIds[i]] = 0;
+        }
+        numOfLemmaIds = 0;
+        for (int i = 0; i < numOfLemmata; i++) {
+            int freq = lemmaFreqTable.get(lemTitle, lemStarts[i], lemEnds[i], 0);
+            if (freq < 10) {
+                freq = 5;
+            }
+            double logFreq = Math.log(freq);
+            lemLogFreqs[i] = logFreq;
+            totalLemmaLogFreq += logFreq;
+
+            if (vocabulary != null) {
+                countLemma(vocabulary.id(lemTitle, lemStarts[i], lemEnds[i]));
+                if (i > 0 && vocabulary.ngrams() > 1) {
+                    countLemma(vocabulary.bigramId(lemTitle, lemStarts[i - 1], lemEnds[i - 1], lemStarts[i],
+                                    lemEnds[i]));
+                }
+            }
+        }
+        Arrays.sort(lemmaIds, 0, numOfLemmaIds);
+        avgLemmaLogFreq = numOfLemmata == 0 ? 0.0 : totalLemmaLogFreq / numOfLemmata;
+        Arrays.sort(lemLogFreqs, 0, numOfLemmata);
+        minLemmaLogFreq = numOfLemmata == 0 ? 0.0 : lemLogFreqs[0];
+        medLemmaLogFreq = numOfLemmata == 0 ? 0.0 : lemLogFreqs[numOfLemmata / 2];
+        maxLemmaLogFreq = numOfLemmata == 0 ? 0.0 : lemLogFreqs[numOfLemmata - 1];
+
+        // affix letters: letters of a word missing from its lemma, skipping punctuation and blank words
+        totalAffixLetters = 0;
+        Arrays.fill(affixLetters, 0);
+        alignmentFailed = false;
+        int shift = 0;
+        for (int j = 0; j < numOfWords; j++) {
+            int from = wordStarts[j];
+            int to = wordEnds[j];
+            if (isPunctWord(rawTitle, from, to) || isBlank(rawTitle, from, to)) {
+                shift++;
+                continue;
+            }
+            if (j - shift >= numOfLemmata) {
+                // counts up to here are kept
+                alignmentFailed = true;
+                break;
+            }
+            int lemmaLetters = letterMask(lemTitle, lemStarts[j - shift], lemEnds[j - shift]);
+            for (int i = from; i < to; i++) {
+                int l = HEB_LETTER_INDEX[rawTitle.charAt(i)];
+                if (l >= 0 && (lemmaLetters & (1 << l)) == 0) {
+                    totalAffixLetters++;
+                    affixLetters[l]++;
+                }
+            }
+        }
+    }
+
+    private void countLemma(int id) {
+        if (id < 0) {
+            return;
+        }
+        if (lemmaCounts[id]++ == 0) {
+            if (numOfLemmaIds == lemmaIds.length) {
+                lemmaIds = Arrays.copyOf(lemmaIds, numOfLemmaIds * 2);
+            }
+            lemmaIds[numOfLemmaIds++] = id;
+        }
+    }
+
+    private static int countPuncts(String s, int from, int to) {
+        int punctCount = 0;
+        for (int i = from; i < to; i++) {
+            if (PUNCT[s.charAt(i)]) {
+                punctCount++;
+            }
+        }
+        return punctCount;
+    }
+
+    private static boolean isPunctWord(String s, int from, int to) {
+        return from < to && countPuncts(s, from, to) == to - from;
+    }
+
+    /**
+     * @return whether String.trim() would leave nothing of the range
+     */
+    private static boolean isBlank(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return bit per letter of {@link #HEB_LETTERS} occurring in the range
+     */
+    private static int letterMask(String s, int from, int to) {
+        int mask = 0;
+        for (int i = from; i < to; i++) {
+            int l = HEB_LETTER_INDEX[s.charAt(i)];
+            if (l >= 0) {
+                mask |= 1 << l;
+            }
+        }
+        return mask;
+    }
+
+    private static boolean isSpace(char c) {
+        // \s in regular expressions
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Finds the tokens s.split("\\s+") would return: a leading empty one if s starts with whitespace, then the runs
+     * of non-whitespace; just an empty one if s is empty.
+     * @return number of tokens
+     */
+    private int tokenize(String s, boolean words) {
+        if (words) {
+            ensureWordCapacity(s.length() / 2 + 2);
+        } else {
+            ensureLemmaCapacity(s.length() / 2 + 2);
+        }
+        int[] starts = words ? wordStarts : lemStarts;
+        int[] ends = words ? wordEnds : lemEnds;
+        if (s.isEmpty()) {
+            starts[0] = 0;
+            ends[0] = 0;
+            return 1;
+        }
+        int n = 0;
+        int i = 0;
+        int len = s.length();
+        if (isSpace(s.charAt(0))) {
+            while (i < len && isSpace(s.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                return 0;
+            }
+            starts[n] = 0;
+            ends[n] = 0;
+            n++;
+        }
+        while (i < len) {
+            int start = i;
+            while (i < len && !isSpace(s.charAt(i))) {
+                i++;
+            }
+            starts[n] = start;
+            ends[n] = i;
+            n++;
+            while (i < len && isSpace(s.charAt(i))) {
+                i++;
+            }
+        }
+        return n;
+    }
+
+    private void ensureWordCapacity(int n) {
+        if (wordStarts.length < n) {
+            wordStarts = new int[n];
+            wordEnds = new int[n];
+            wordLogFreqs = new double[n];
+            wordLengths = new int[n];
+        }
+    }
+
+    private void ensureLemmaCapacity(int n) {
+        if (lemStarts.length < n) {
+            lemStarts = new int[n];
+            lemEnds = new int[n];
+            lemLogFreqs = new double[n];
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package media_analysis.features;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import media_analysis.utils.ProcessedData;
+
+/**
+ * Maps lemmata to the IDs of their bag-of-words features, straight from a range of the lemmatized title. Either a
+ * fixed vocabulary, looked up in an open-addressing table, or hashed lemma n-grams (the hashing trick), which needs
+ * no vocabulary at all; lookups take the same time whatever the number of features.
+ * @author yuvalp
+ *
+ */
+class LemmaVocabulary {
+
+    private static final String TOTAL_PREFIX = "TOTAL\t";
+
+    /** Vocabulary lemmata by ID, null when hashing */
+    private final String[] lemmata;
+    private final String[] keys;
+    private final int[] hashes;
+    private final int[] ids;
+    private final int hashBuckets;
+    private final int ngrams;
+    private final String attributePrefix;
+    /** Whether attributes are named by lemma rather than by ID */
+    private final boolean namedByLemma;
+
+    private LemmaVocabulary(String[] iLemmata, int iHashBuckets, int iNgrams, String iAttributePrefix,
+                    boolean iNamedByLemma) {
+        lemmata = iLemmata;
+        hashBuckets = iHashBuckets;
+        ngrams = iNgrams;
+        attributePrefix = iAttributePrefix;
+        namedByLemma = iNamedByLemma;
+        int capacity = Integer.highestOneBit(Math.max(1, lemmata == null ? 0 : lemmata.length) * 4);
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        ids = new int[capacity];
+        if (lemmata != null) {
+            for (int id = 0; id < lemmata.length; id++) {
+                String lemma = lemmata[id];
+                int h = hash(lemma, 0, lemma.length());
+                int slot = h & (capacity - 1);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = lemma;
+                hashes[slot] = h;
+                ids[slot] = id;
+            }
+        }
+    }
+
+    /**
+     * @return the vocabulary the lemma features started with, the top 50 lemmata of January 2015
+     */
+    static LemmaVocabulary topFiftyJan() {
+        return new LemmaVocabulary(ProcessedData.topFiftyJanLemmata.clone(), 0, 1, "freq-jan-lemma-", false);
+    }
+
+    /**
+     * Reads the top lemmata of a section of {@link media_analysis.nlp.FreqCounter}'s lemmata output, which lists them
+     * by descending count. Running it over a date window's headlines gives that window's vocabulary.
+     * @param section an outlet's name, or ALL
+     * @param size maximal number of lemmata, or a negative number for all of the section
+     */
+    static LemmaVocabulary fromFreqCounts(String location, String section, int size) throws IOException {
+        List<String> selected = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(location), "UTF8"));
+        try {
+            int lineNumber = 1;
+            String line = in.readLine();
+            while (line != null && !line.equals(section + ":")) {
+                lineNumber++;
+                line = in.readLine();
+            }
+            if (line == null) {
+                throw new IOException("No section " + section + " in " + location);
+            }
+            lineNumber++;
+            line = in.readLine();
+            while (line != null && !line.startsWith(TOTAL_PREFIX) && (size < 0 || selected.size() < size)) {
+                // lemma \t count
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) {
+                    throw new IOException("Not a lemma and count in " + location + ", line " + lineNumber + ": "
+                                    + line);
+                }
+                String lemma = line.substring(0, tab);
+                if (!lemma.isEmpty()) {
+                    selected.add(lemma);
+                }
+                lineNumber++;
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+        return new LemmaVocabulary(selected.toArray(new String[selected.size()]), 0, 1, "lemma-", true);
+    }
+
+    /**
+     * @param ngrams 1 for lemmata, 2 for lemmata and pairs of consecutive lemmata
+     */
+    static LemmaVocabulary hashed(int buckets, int ngrams) {
+        return new LemmaVocabulary(null, buckets, ngrams, "lemma-hash-", false);
+    }
+
+    boolean isHashed() {
+        return lemmata == null;
+    }
+
+    /**
+     * @return number of feature IDs
+     */
+    int size() {
+        return isHashed() ? hashBuckets : lemmata.length;
+    }
+
+    String attributeName(int id) {
+        return attributePrefix + (namedByLemma ? lemmata[id] : Integer.toString(id));
+    }
+
+    int ngrams() {
+        return ngrams;
+    }
+
+    /**
+     * @return ID of s.substring(from, to), -1 if not in the vocabulary
+     */
+    int id(String s, int from, int to) {
+        int h = hash(s, from, to);
+        if (isHashed()) {
+            return bucket(h);
+        }
+        int len = to - from;
+        int mask = keys.length - 1;
+        int slot = h & mask;
+        String k = keys[slot];
+        while (k != null) {
+            if (hashes[slot] == h && k.length() == len && s.regionMatches(from, k, 0, len)) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+            k = keys[slot];
+        }
+        return -1;
+    }
+
+    /**
+     * Only when hashing.
+     * @return ID of the pair of consecutive lemmata
+     */
+    int bigramId(String s, int from1, int to1, int from2, int to2) {
+        return bucket(31 * (31 * hash(s, from1, to1) + ' ') + hash(s, from2, to2));
+    }
+
+    private int bucket(int h) {
+        // spread the bits, as nearby strings have nearby hashes
+        h *= 0x9E3779B9;
+        return (int) (((h & 0xFFFFFFFFL) * hashBuckets) >>> 32);
+    }
+
+    private static int hash(String src, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + src.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        if (isHashed()) {
+            return hashBuckets + " buckets of hashed lemma " + (ngrams > 1 ? "uni- and bigrams" : "unigrams");
+        }
+        return lemmata.length + " lemmata, starting " + Arrays.toString(Arrays.copyOf(lemmata, Math.min(5,
+                        lemmata.length)));
+    }
+
+}
@@ -10,6 +10,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,13 +18,18 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
 import media_analysis.Configuration;
 import media_analysis.Outlet;
+import media_analysis.corpus.DateIndex;
+import media_analysis.corpus.HeadlineStore;
+import media_analysis.corpus.NearDuplicates;
 import media_analysis.utils.Consts;
-import media_analysis.utils.ProcessedData;
+import media_analysis.utils.CountingInputStream;
+import media_analysis.utils.LatencyHistogram;
+import media_analysis.utils.MappedFreqTable;
+import media_analysis.utils.Metrics;
 
 import com.sun.org.apache.xerces.internal.impl.io.UTF8Reader;
 
@@ -32,6 +38,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.SparseInstance;
 import weka.core.converters.ArffSaver;
+import weka.core.converters.Saver;
 
 /**
  * TODO properly document and remove mess.
@@ -41,28 +48,73 @@ import weka.core.converters.ArffSaver;
  */
 public class NewsOutletPredictorFeatureExtractor extends Consts {
 
-    private static final String HEB_LETTERS = "אבגדהוזחטיכךלמםנןסעפףצץקרשת";
     private static final List<Integer> HEB_MAX_ACC_LETTER_INDICES = Arrays.asList(1, 2, 5, 6, 10, 11, 12, 13, 14, 15,
                     16, 17, 18, 19, 20, 22, 26, 27);
-    private static final Pattern punctPattern = Pattern.compile("^[\\p{Punct}\\|–]+$");
 
     private static final DateFormat sourceDataFormat = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);
     private static final DateFormat confDataFormat = new SimpleDateFormat(Configuration.DATE_PATTERN, Locale.ENGLISH);
 
-    private Map<String, Integer> lemmaFreqTable;
-    private Map<String, Integer> wordFreqTable;
+    private static final String STAGE = "features";
+    private static final AtomicLong headlinesMetric = Metrics.items(STAGE);
+    private static final AtomicLong badLinesMetric = Metrics.failures(STAGE, "", "bad-line");
+    private static final AtomicLong bytesReadMetric = Metrics.counter("bytes_read_total", Metrics.labels("stage",
+                    STAGE));
+    // per outlet
+    private static final LatencyHistogram[] featuresMetrics = new LatencyHistogram[Outlet.values().length];
+    private static final AtomicLong[] alignmentFailureMetrics = new AtomicLong[Outlet.values().length];
+    private static final AtomicLong[] nearDuplicateMetrics = new AtomicLong[Outlet.values().length];
+    static {
+        for (Outlet o : Outlet.values()) {
+            featuresMetrics[o.ordinal()] = Metrics.histogram("features_seconds", Metrics.labels("outlet", o.name()));
+            alignmentFailureMetrics[o.ordinal()] = Metrics.failures(STAGE, o.name(), "alignment");
+            nearDuplicateMetrics[o.ordinal()] = Metrics.failures(STAGE, o.name(), "near-duplicate");
+        }
+    }
+
+    private MappedFreqTable lemmaFreqTable;
+    private MappedFreqTable wordFreqTable;
 
     private Date startDate = new Date(0);
     private Date endDate = new Date(Long.MAX_VALUE);
 
     private boolean optimizeFeatures = false;
     private boolean setIds = false;
+    private boolean writeIncrementally = false;
+    /** Of the lemma bag-of-words features, null for none */
+    private final LemmaVocabulary lemmaVocabulary;
+
+    // near-duplicate filtering, "outlet" or "all" for across outlets, empty for none
+    private final String nearDuplicatesScope;
+    private final int nearDuplicatesWindowHours;
+    private final double nearDuplicatesThreshold;
+
+    private int wordLemmaAlignmentFails = 0;
+    private NearDuplicates nearDuplicates = null;
+    private int nearDuplicatesSkipped = 0;
+    private final FeatureKernel kernel;
+
+    // attributes of single headlines' instances, kept for as long as the outlets asked for stay the same
+    private List<String> headlineOutlets = null;
+    private Features headlineFeatures = null;
+    private Instances headlineDataset = null;
 
     public NewsOutletPredictorFeatureExtractor(Configuration conf) throws IOException {
-        lemmaFreqTable = readFreqTable(conf.get(Configuration.LEMMA_FREQ_FILE_KEY));
-        wordFreqTable = readFreqTable(conf.get(Configuration.WORD_FREQ_FILE_KEY));
+        lemmaFreqTable = MappedFreqTable.open(conf.get(Configuration.LEMMA_FREQ_FILE_KEY));
+        wordFreqTable = MappedFreqTable.open(conf.get(Configuration.WORD_FREQ_FILE_KEY));
         optimizeFeatures = conf.getBoolean(Configuration.OPTIMIZE_FEATURES_KEY);
+        lemmaVocabulary = lemmaVocabulary(conf);
+        if (lemmaVocabulary != null) {
+            System.out.println("Lemma features: " + lemmaVocabulary);
+        }
+        kernel = new FeatureKernel(wordFreqTable, lemmaFreqTable, lemmaVocabulary);
         setIds = conf.getBoolean(Configuration.FEATURES_HAVE_IDS_KEY);
+        writeIncrementally = conf.getBoolean(Configuration.WRITE_INCREMENTALLY_KEY);
+        nearDuplicatesScope = conf.get(Configuration.NEAR_DUPLICATES_KEY);
+        nearDuplicatesWindowHours = conf.getInt(Configuration.NEAR_DUPLICATES_WINDOW_KEY,
+                        NearDuplicates.DEFAULT_WINDOW_HOURS);
+        String threshold = conf.get(Configuration.NEAR_DUPLICATES_THRESHOLD_KEY);
+        nearDuplicatesThreshold = threshold.isEmpty() ? NearDuplicates.DEFAULT_THRESHOLD : Double.parseDouble(
+                        threshold);
         try {
             startDate = conf.getDate(Configuration.START_DATE_KEY);
             endDate = conf.getDate(Configuration.END_DATE_KEY);
@@ -73,354 +125,577 @@ public class NewsOutletPredictorFeatureExtractor extends Consts {
         }
     }
 
+    /**
+     * @return hashed lemma n-grams or the top lemmata of a {@link media_analysis.nlp.FreqCounter} output if either is
+     *         configured, else the top fifty lemmata of January unless features are optimized
+     */
+    private LemmaVocabulary lemmaVocabulary(Configuration conf) throws IOException {
+        int buckets = conf.getInt(Configuration.LEMMA_HASH_BUCKETS_KEY, 0);
+        if (buckets > 0) {
+            return LemmaVocabulary.hashed(buckets, conf.getInt(Configuration.LEMMA_NGRAMS_KEY, 1));
+        }
+        String location = conf.get(Configuration.LEMMA_VOCABULARY_FILE_KEY);
+        if (!location.isEmpty()) {
+            String section = conf.get(Configuration.LEMMA_VOCABULARY_SECTION_KEY);
+            return LemmaVocabulary.fromFreqCounts(location, section.isEmpty() ? "ALL" : section, conf.getInt(
+                            Configuration.LEMMA_VOCABULARY_SIZE_KEY, -1));
+        }
+        return optimizeFeatures ? null : LemmaVocabulary.topFiftyJan();
+    }
+
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
             System.out.println("Usage: FeatureExtractor <conf-file>");
             return;
         }
 
+        Metrics.startExport();
         Configuration conf = new Configuration(args[0]);
         NewsOutletPredictorFeatureExtractor extractor = new NewsOutletPredictorFeatureExtractor(conf);
 
-        boolean runOnAllPairs = conf.getBoolean(Configuration.WRITE_PAIRED_KEY);
-
-        List<String> outlets = new ArrayList<>();
-        String[] confOutlets = conf.getArray(Configuration.OUTLETS_KEY);
-        if (confOutlets[0].equals("ALL")) {
-            outlets = outletList();
-        } else {
-            outlets = Arrays.asList(confOutlets);
-        }
         String inArg = conf.get(Configuration.INPUT_KEY);
         String outBaseArg = conf.get(Configuration.OUTPUT_KEY);
+        extractor.extractFeaturesForOutletSets(inArg, outBaseArg, outletSets(conf));
+        Metrics.finish();
+    }
 
-        extractor.extractFeatures(inArg, outBaseArg, outlets);
-
+    /**
+     * @return the configured outlets, followed by each pair of them if paired files are also to be written
+     */
+    public static List<List<String>> outletSets(Configuration conf) {
+        boolean runOnAllPairs = conf.getBoolean(Configuration.WRITE_PAIRED_KEY);
+        List<String> outlets = outlets(conf);
+        List<List<String>> outletSets = new ArrayList<>();
+        outletSets.add(outlets);
         if (runOnAllPairs) {
             for (int i = 0; i < outlets.size(); i++) {
                 for (int j = i + 1; j < outlets.size(); j++) {
-                    List<String> outletPair = Arrays.asList(outlets.get(i), outlets.get(j));
-                    extractor.extractFeatures(inArg, outBaseArg, outletPair);
+                    outletSets.add(Arrays.asList(outlets.get(i), outlets.get(j)));
                 }
             }
         }
+        return outletSets;
+    }
 
+    /**
+     * @return the configured outlets, all of them for ALL
+     */
+    public static List<String> outlets(Configuration conf) {
+        String[] confOutlets = conf.getArray(Configuration.OUTLETS_KEY);
+        if (confOutlets[0].equals("ALL")) {
+            return outletList();
+        }
+        return Arrays.asList(confOutlets);
     }
 
-    @SuppressWarnings("resource")
-    public void extractFeatures(String inFileLocation, String outFileBase, List<String> outlets)
-                    throws FileNotFoundException, IOException {
+    /**
+     * Attributes of a dataset over a given set of outlets.
+     */
+    class Features {
+
+        final Attribute idAttr = new Attribute("ID", (List<String>) null);
+        final Attribute numOfCharsAttr = new Attribute("num-of-chars");
+        final Attribute numOfWordsAttr = new Attribute("num-of-words");
+        final Attribute avgWordLengthAttr = new Attribute("avg-word-length");
+        final Attribute minWordLengthAttr = new Attribute("min-word-length");
+        final Attribute medWordLengthAttr = new Attribute("med-word-length");
+        final Attribute maxWordLengthAttr = new Attribute("max-word-length");
+        final Attribute numOfPunctsAttr = new Attribute("num-of-puncts");
+        final Attribute avgIsrablogLemmaFreqAttr = new Attribute("avg-isbl-lemma-freq");
+        final Attribute avgWordlistWordFreqAttr = new Attribute("avg-wlst-word-freq");
+        final Attribute maxIsrablogLemmaFreqAttr = new Attribute("max-isbl-lemma-freq");
+        final Attribute maxWordlistWordFreqAttr = new Attribute("max-wlst-word-freq");
+        final Attribute minIsrablogLemmaFreqAttr = optimizeFeatures ? null : new Attribute("min-isbl-lemma-freq");
+        final Attribute minWordlistWordFreqAttr = optimizeFeatures ? null : new Attribute("min-wlst-word-freq");
+        final Attribute medIsrablogLemmaFreqAttr = new Attribute("med-isbl-lemma-freq");
+        final Attribute medWordlistWordFreqAttr = new Attribute("med-wlst-word-freq");
+        final Attribute epochCountAttr = optimizeFeatures ? null : new Attribute("epochs");
+        final Map<Character, Attribute> affixLetterAttrs = new HashMap<>();
+        final Attribute[] affixLetterAttrsByLetter = new Attribute[FeatureKernel.HEB_LETTERS.length()];
+        /** By {@link LemmaVocabulary} ID, consecutive in the dataset */
+        final Attribute[] lemmaAttrs = lemmaVocabulary == null ? null : new Attribute[lemmaVocabulary.size()];
+        final Attribute totalAffixLettersAttr = optimizeFeatures ? null : new Attribute("total-affix-letters");
+        final Attribute affixLettersPerWordAttr = optimizeFeatures ? null : new Attribute("affix-letters-per-word");
+        final Attribute affixLettersPerCharAttr = optimizeFeatures ? null : new Attribute("affix-letters-per-char");
+        final Attribute outletAttr;
+        final ArrayList<Attribute> attrs = new ArrayList<>();
+        /** Reused for each instance's values, but for the lemma attributes which are left at zero */
+        final double[] values;
+        final int lemmaAttrsStart;
+        final int lemmaAttrsEnd;
+
+        Features(List<String> outlets) {
+            int l = 1;
+            for (char a : FeatureKernel.HEB_LETTERS.toCharArray()) {
+                if (!optimizeFeatures || HEB_MAX_ACC_LETTER_INDICES.contains(l)) {
+                    affixLetterAttrsByLetter[l - 1] = new Attribute("affix-" + l);
+                    affixLetterAttrs.put(a, affixLetterAttrsByLetter[l - 1]);
+                }
+                l++;
+            }
+            if (lemmaAttrs != null) {
+                for (int i = 0; i < lemmaAttrs.length; i++) {
+                    lemmaAttrs[i] = new Attribute(lemmaVocabulary.attributeName(i));
+                }
+            }
+            outletAttr = new Attribute("class", outlets);
+            if (setIds) {
+                attrs.add(idAttr);
+            }
+            attrs.add(numOfCharsAttr);
+            attrs.add(numOfWordsAttr);
+            attrs.add(avgWordLengthAttr);
+            attrs.add(minWordLengthAttr);
+            attrs.add(medWordLengthAttr);
+            attrs.add(maxWordLengthAttr);
+            attrs.add(numOfPunctsAttr);
+            attrs.add(avgIsrablogLemmaFreqAttr);
+            attrs.add(avgWordlistWordFreqAttr);
+            attrs.add(maxIsrablogLemmaFreqAttr);
+            attrs.add(maxWordlistWordFreqAttr);
+            if (!optimizeFeatures) {
+                attrs.add(minIsrablogLemmaFreqAttr);
+                attrs.add(minWordlistWordFreqAttr);
+            }
+            attrs.add(medIsrablogLemmaFreqAttr);
+            attrs.add(medWordlistWordFreqAttr);
+            if (!optimizeFeatures) {
+                attrs.add(epochCountAttr);
+            }
+            attrs.addAll(affixLetterAttrs.values());
+            if (lemmaAttrs != null) {
+                for (Attribute la : lemmaAttrs) {
+                    attrs.add(la);
+                }
+            }
+            if (!optimizeFeatures) {
+                attrs.add(totalAffixLettersAttr);
+                attrs.add(affixLettersPerWordAttr);
+                attrs.add(affixLettersPerCharAttr);
+            }
+            attrs.add(outletAttr);
+            values = new double[attrs.size()];
+            lemmaAttrsStart = lemmaAttrs == null || lemmaAttrs.length == 0 ? values.length : attrs.indexOf(
+                            lemmaAttrs[0]);
+            lemmaAttrsEnd = lemmaAttrsStart + (lemmaAttrs == null ? 0 : lemmaAttrs.length);
+        }
+
+    }
 
-        StringBuilder sb = new StringBuilder(outFileBase);
-        if (!setIds) {
-            sb.append("-no-ids");
-        }
-        for (String outlet : outlets) {
-            sb.append("-" + Outlet.toCode(outlet));
-        }
-        sb.append("_").append(confDataFormat.format(startDate)).append("-").append(confDataFormat.format(endDate))
-                        .append(".arff");
-        String outFileLocation = sb.toString();
-        System.out.println("Writing features derived from " + inFileLocation + " to " + outFileLocation);
-
-        Attribute idAttr = new Attribute("ID", (List<String>) null);
-        Attribute numOfCharsAttr = new Attribute("num-of-chars");
-        Attribute numOfWordsAttr = new Attribute("num-of-words");
-        Attribute avgWordLengthAttr = new Attribute("avg-word-length");
-        Attribute minWordLengthAttr = new Attribute("min-word-length");
-        Attribute medWordLengthAttr = new Attribute("med-word-length");
-        Attribute maxWordLengthAttr = new Attribute("max-word-length");
-        Attribute numOfPunctsAttr = new Attribute("num-of-puncts");
-        Attribute avgIsrablogLemmaFreqAttr = new Attribute("avg-isbl-lemma-freq");
-        Attribute avgWordlistWordFreqAttr = new Attribute("avg-wlst-word-freq");
-        Attribute maxIsrablogLemmaFreqAttr = new Attribute("max-isbl-lemma-freq");
-        Attribute maxWordlistWordFreqAttr = new Attribute("max-wlst-word-freq");
-        Attribute minIsrablogLemmaFreqAttr = optimizeFeatures ? null : new Attribute("min-isbl-lemma-freq");
-        Attribute minWordlistWordFreqAttr = optimizeFeatures ? null : new Attribute("min-wlst-word-freq");
-        Attribute medIsrablogLemmaFreqAttr = new Attribute("med-isbl-lemma-freq");
-        Attribute medWordlistWordFreqAttr = new Attribute("med-wlst-word-freq");
-        Attribute epochCountAttr = optimizeFeatures ? null : new Attribute("epochs");
-        Map<Character, Attribute> affixLetterAttrs = new HashMap<>();
-        int l = 1;
-        for (char a : HEB_LETTERS.toCharArray()) {
-            if (!optimizeFeatures || HEB_MAX_ACC_LETTER_INDICES.contains(l)) {
-                affixLetterAttrs.put(a, new Attribute("affix-" + l));
+    /**
+     * A dataset written to its own file, either all at once when done or an instance at a time as they come, leaving
+     * {@link #instances} as just the header.
+     */
+    class Dataset {
+
+        final List<String> outlets;
+        final Features features;
+        final Instances instances;
+        final String outFileLocation;
+        int written = 0;
+        private ArffSaver incrementalSaver = null;
+
+        Dataset(String outFileBase, List<String> iOutlets) {
+            outlets = iOutlets;
+            features = new Features(outlets);
+            instances = new Instances("Instances", features.attrs, 100);
+
+            StringBuilder sb = new StringBuilder(outFileBase);
+            if (!setIds) {
+                sb.append("-no-ids");
+            }
+            for (String outlet : outlets) {
+                sb.append("-" + Outlet.toCode(outlet));
             }
-            l++;
+            sb.append("_").append(confDataFormat.format(startDate)).append("-").append(confDataFormat.format(endDate))
+                            .append(".arff");
+            outFileLocation = sb.toString();
         }
-        Attribute[] freqJanLemmataAttrs = optimizeFeatures ? null : new Attribute[50];
-        if (freqJanLemmataAttrs != null) {
-            for (int i = 0; i < 50; i++) {
-                freqJanLemmataAttrs[i] = new Attribute("freq-jan-lemma-" + i);
+
+        void open() throws IOException {
+            if (writeIncrementally) {
+                incrementalSaver = new ArffSaver();
+                incrementalSaver.setRetrieval(Saver.INCREMENTAL);
+                incrementalSaver.setInstances(instances);
+                incrementalSaver.setFile(new File(outFileLocation));
             }
         }
-        Attribute totalAffixLettersAttr = optimizeFeatures ? null : new Attribute("total-affix-letters");
-        Attribute affixLettersPerWordAttr = optimizeFeatures ? null : new Attribute("affix-letters-per-word");
-        Attribute affixLettersPerCharAttr = optimizeFeatures ? null : new Attribute("affix-letters-per-char");
-        Attribute outletAttr = new Attribute("class", outlets);
-        ArrayList<Attribute> attrs = new ArrayList<>();
-        if (setIds) {
-            attrs.add(idAttr);
-        }
-        attrs.add(numOfCharsAttr);
-        attrs.add(numOfWordsAttr);
-        attrs.add(avgWordLengthAttr);
-        attrs.add(minWordLengthAttr);
-        attrs.add(medWordLengthAttr);
-        attrs.add(maxWordLengthAttr);
-        attrs.add(numOfPunctsAttr);
-        attrs.add(avgIsrablogLemmaFreqAttr);
-        attrs.add(avgWordlistWordFreqAttr);
-        attrs.add(maxIsrablogLemmaFreqAttr);
-        attrs.add(maxWordlistWordFreqAttr);
-        if (!optimizeFeatures) {
-            attrs.add(minIsrablogLemmaFreqAttr);
-            attrs.add(minWordlistWordFreqAttr);
+
+        void add(Instance inst) throws IOException {
+            if (incrementalSaver == null) {
+                instances.add(inst);
+            } else {
+                inst.setDataset(instances);
+                incrementalSaver.writeIncremental(inst);
+            }
+            written++;
         }
-        attrs.add(medIsrablogLemmaFreqAttr);
-        attrs.add(medWordlistWordFreqAttr);
-        if (!optimizeFeatures) {
-            attrs.add(epochCountAttr);
+
+        void close() throws IOException {
+            if (incrementalSaver == null) {
+                ArffSaver saver = new ArffSaver();
+                saver.setInstances(instances);
+                saver.setFile(new File(outFileLocation));
+                saver.writeBatch();
+            } else {
+                incrementalSaver.writeIncremental(null);
+            }
+        }
+
+    }
+
+    public void extractFeatures(String inFileLocation, String outFileBase, List<String> outlets)
+                    throws FileNotFoundException, IOException {
+        extractFeaturesForOutletSets(inFileLocation, outFileBase, Collections.singletonList(outlets));
+    }
+
+    /**
+     * Writes a file for each set of outlets in a single pass over the input: each headline's features are computed
+     * once and added to every dataset whose outlets include the headline's.
+     */
+    public void extractFeaturesForOutletSets(String inFileLocation, String outFileBase, List<List<String>> outletSets)
+                    throws FileNotFoundException, IOException {
+        List<Dataset> datasets = openDatasets(inFileLocation, outFileBase, outletSets);
+        closeDatasets(datasets, extractInto(inFileLocation, datasets));
+    }
+
+    /**
+     * Same as {@link #extractFeaturesForOutletSets(String, String, List)}, reading tokenized headlines sorted by date
+     * from a stream, e.g. a pipe from the previous stages. Closes the reader, before its end once past the end date.
+     */
+    public void extractFeaturesForOutletSets(BufferedReader in, String outFileBase, List<List<String>> outletSets)
+                    throws IOException {
+        List<Dataset> datasets = openDatasets("stream", outFileBase, outletSets);
+        int badLineInputs;
+        try {
+            badLineInputs = extractLines(in, true, datasets);
+        } finally {
+            in.close();
+        }
+        closeDatasets(datasets, badLineInputs);
+    }
+
+    private List<Dataset> openDatasets(String inDescription, String outFileBase, List<List<String>> outletSets)
+                    throws IOException {
+        List<Dataset> datasets = new ArrayList<>();
+        for (List<String> outlets : outletSets) {
+            Dataset ds = new Dataset(outFileBase, outlets);
+            ds.open();
+            datasets.add(ds);
+            System.out.println("Writing features derived from " + inDescription + " to " + ds.outFileLocation);
+        }
+        return datasets;
+    }
+
+    private void closeDatasets(List<Dataset> datasets, int badLineInputs) throws IOException {
+        for (Dataset ds : datasets) {
+            ds.close();
+
+            System.out.println("Finished! Wrote " + ds.written + " vectors to " + ds.outFileLocation + " with "
+                            + badLineInputs + " bad inputs and " + wordLemmaAlignmentFails + " alignment failures"
+                            + nearDuplicatesReport() + ".");
+        }
+    }
+
+    /**
+     * Extracts a dataset in memory, for training without going through a file.
+     * @return instances of the given outlets, with the outlet as class
+     */
+    public Instances extractInstances(String inFileLocation, List<String> outlets) throws IOException {
+        Dataset ds = new Dataset("", outlets);
+        int badLineInputs = extractInto(inFileLocation, Collections.singletonList(ds));
+        System.out.println("Extracted " + ds.written + " vectors from " + inFileLocation + " with " + badLineInputs
+                        + " bad inputs and " + wordLemmaAlignmentFails + " alignment failures"
+                        + nearDuplicatesReport() + ".");
+        ds.instances.setClassIndex(ds.instances.numAttributes() - 1);
+        return ds.instances;
+    }
+
+    /**
+     * Computes the features of a single headline outside of any corpus, e.g. for classifying it as it comes. Not
+     * thread safe, as the extractor's scratch space is reused.
+     * @param epochs number of epochs the headline survived, only used without {@link #optimizeFeatures}
+     * @return instance over the attributes of a dataset of the given outlets (its dataset), with the class missing
+     * @throws ArrayIndexOutOfBoundsException if the raw title has no words
+     */
+    public Instance headlineInstance(String rawTitle, String lemTitle, int epochs, List<String> outlets) {
+        if (!outlets.equals(headlineOutlets)) {
+            headlineOutlets = new ArrayList<>(outlets);
+            headlineFeatures = new Features(headlineOutlets);
+            headlineDataset = new Instances("Headlines", headlineFeatures.attrs, 0);
+            headlineDataset.setClassIndex(headlineDataset.numAttributes() - 1);
         }
-        attrs.addAll(affixLetterAttrs.values());
-        if (freqJanLemmataAttrs != null) {
-            for (Attribute fla : freqJanLemmataAttrs) {
-                attrs.add(fla);
+        String[] columns = { "", headlineOutlets.get(0), Integer.toString(epochs), rawTitle, lemTitle };
+        Instance inst = toInstance(columns, headlineFeatures);
+        inst.setMissing(headlineFeatures.outletAttr);
+        inst.setDataset(headlineDataset);
+        return inst;
+    }
+
+    /**
+     * Single pass over the input, adding each headline in range to the datasets of its outlet.
+     * @return number of bad input lines
+     */
+    @SuppressWarnings("resource")
+    private int extractInto(String inFileLocation, List<Dataset> datasets) throws IOException {
+        if (HeadlineStore.exists(inFileLocation)) {
+            Set<String> allOutlets = allOutlets(datasets);
+            startPass();
+            Set<String> outletsWithLastRead = new HashSet<>();
+            // converted corpus: filter on the columns, only materialize text of included headlines
+            HeadlineStore store = new HeadlineStore(inFileLocation);
+            for (int h = 0; h < store.size(); h++) {
+                String outlet = store.outlet(h).name();
+                if (!allOutlets.contains(outlet)) {
+                    continue;
+                }
+                Date instanceTime = store.date(h);
+                if (!inDateRange(instanceTime, outlet, outletsWithLastRead)) {
+                    continue;
+                }
+                String[] columns = { sourceDataFormat.format(instanceTime), outlet, Integer.toString(store.epochs(h)),
+                                store.raw(h), store.lemmatized(h) };
+                addInstance(columns, instanceTime, datasets);
             }
+            return store.badLines();
         }
-        if (!optimizeFeatures) {
-            attrs.add(totalAffixLettersAttr);
-            attrs.add(affixLettersPerWordAttr);
-            attrs.add(affixLettersPerCharAttr);
+        // lines before the start date's are skipped with a seek, if the file is sorted by date
+        FileInputStream fis = new FileInputStream(new File(inFileLocation));
+        long startOffset = DateIndex.open(inFileLocation).offsetOf(startDate);
+        if (startOffset > 0) {
+            fis.getChannel().position(startOffset);
+        }
+        BufferedReader in = new BufferedReader(new UTF8Reader(new CountingInputStream(fis, bytesReadMetric)));
+        try {
+            return extractLines(in, startOffset >= 0, datasets);
+        } finally {
+            in.close();
         }
-        attrs.add(outletAttr);
-        Instances instances = new Instances("Instances", attrs, 100);
+    }
 
-        BufferedReader in = new BufferedReader(new UTF8Reader(new FileInputStream(new File(inFileLocation))));
+    private static Set<String> allOutlets(List<Dataset> datasets) {
+        Set<String> allOutlets = new HashSet<>();
+        for (Dataset ds : datasets) {
+            allOutlets.addAll(ds.outlets);
+        }
+        return allOutlets;
+    }
+
+    /**
+     * Adds each tokenized headline line in range to the datasets of its outlet.
+     * @param sorted whether lines are sorted by date, so that reading can stop once past the end date
+     * @return number of bad input lines
+     */
+    private int extractLines(BufferedReader in, boolean sorted, List<Dataset> datasets) throws IOException {
+        Set<String> allOutlets = allOutlets(datasets);
+        int badLineInputs = 0;
+        startPass();
+        Set<String> outletsWithLastRead = new HashSet<>();
         String line = in.readLine();
-        int written = 0, badLineInputs = 0, wordLemmaAlignmentFails = 0;
-        Set<String> OutletsWithLastRead = new HashSet<>();
         while (line != null) {
             // time-changed \t outlet \t epochs \t raw \t lemmatized
             String[] columns = line.split("\\t");
             if (columns.length != 5) {
                 badLineInputs++;
+                badLinesMetric.incrementAndGet();
                 line = in.readLine();
                 continue;
             }
 
             // outlet filtering
             String outlet = columns[1];
-            if (!outlets.contains(outlet)) {
+            if (!allOutlets.contains(outlet)) {
                 line = in.readLine();
                 continue;
             }
 
-            // date filtering - but keep one extra for each because it contains data from last day
             Date instanceTime = null;
             try {
                 instanceTime = sourceDataFormat.parse(columns[0]);
             } catch (ParseException e) {
                 System.out.println("Bad date: " + line);
                 badLineInputs++;
+                badLinesMetric.incrementAndGet();
                 line = in.readLine();
                 continue;
             }
-            if (instanceTime.before(startDate)) {
-                line = in.readLine();
-                continue;
+            if (inDateRange(instanceTime, outlet, outletsWithLastRead)) {
+                addInstance(columns, instanceTime, datasets);
             }
-            if (instanceTime.after(endDate)) {
-                if (OutletsWithLastRead.contains(outlet)) {
-                    line = in.readLine();
-                    continue;
-                }
-                OutletsWithLastRead.add(outlet);
+            if (sorted && instanceTime.after(endDate) && outletsWithLastRead.containsAll(allOutlets)) {
+                // no more lines in range, and every outlet has its extra one
+                break;
             }
 
-            // TODO time-based duplication
-
-            Instance inst = new SparseInstance(0);
-            if (setIds) {
-                inst.setValue(idAttr, columns[0] + ":" + outlet);
-            }
-
-            String rawTitle = columns[3];
-            String lemTitle = columns[4];
+            line = in.readLine();
+        }
+        return badLineInputs;
+    }
 
-            // num of chars
-            int numOfChars = rawTitle.length();
-            inst.setValue(numOfCharsAttr, numOfChars);
+    /**
+     * Date filtering - but keep one extra for each outlet because it contains data from last day.
+     */
+    private boolean inDateRange(Date instanceTime, String outlet, Set<String> outletsWithLastRead) {
+        if (instanceTime.before(startDate)) {
+            return false;
+        }
+        return !instanceTime.after(endDate) || outletsWithLastRead.add(outlet);
+    }
 
-            // num of punct
-            inst.setValue(numOfPunctsAttr, countPuncts(rawTitle));
+    /**
+     * Resets the counts of a pass over the input, and starts near-duplicate filtering afresh if configured.
+     */
+    private void startPass() {
+        wordLemmaAlignmentFails = 0;
+        nearDuplicatesSkipped = 0;
+        if (!nearDuplicatesScope.isEmpty()) {
+            nearDuplicates = new NearDuplicates(nearDuplicatesWindowHours, nearDuplicatesThreshold,
+                            nearDuplicatesScope.equals("all"));
+        }
+    }
 
-            // num of epochs
-            if (!optimizeFeatures) {
-                inst.setValue(epochCountAttr, Integer.parseInt(columns[2]));
-            }
+    private String nearDuplicatesReport() {
+        return nearDuplicates == null ? "" : ", skipping " + nearDuplicatesSkipped + " near duplicates";
+    }
 
-            String[] rawWords = rawTitle.split("\\s+");
-            String[] rawLem = lemTitle.split("\\s+");
-
-            // num of words
-            int numOfWords = rawWords.length;
-            int numOfLemmata = rawLem.length;
-            inst.setValue(numOfWordsAttr, numOfWords);
-
-            // word freq, length stats
-            double totalWordlistWordLogFreq = 0.0;
-            double[] wordLogFreqs = new double[numOfWords];
-            int totalWordChars = 0;
-            int[] wordLengths = new int[numOfWords];
-            int i = 0;
-            for (String w : rawWords) {
-                int len = noPunctLength(w);
-                totalWordChars += len;
-                wordLengths[i] = len;
-                Integer f = wordFreqTable.get(w);
-                if (f == null || f < 5) {
-                    f = 3;
-                }
-                double logFreq = Math.log(f);
-                wordLogFreqs[i] = logFreq;
-                totalWordlistWordLogFreq += logFreq;
-                i++;
+    /**
+     * Adds the headline to every dataset whose outlets include its own, unless it nearly repeats an earlier one (so
+     * that near copies do not end up on both sides of a train/test split).
+     * @param columns time-changed, outlet, epochs, raw, lemmatized
+     */
+    private void addInstance(String[] columns, Date instanceTime, List<Dataset> datasets) throws IOException {
+        String outlet = columns[1];
+        if (nearDuplicates != null) {
+            Outlet o = Outlet.valueOf(outlet);
+            // the ID of the original is not needed
+            if (nearDuplicates.add(0, instanceTime.getTime() / 60000, o, columns[4]) != null) {
+                nearDuplicatesSkipped++;
+                nearDuplicateMetrics[o.ordinal()].incrementAndGet();
+                return;
             }
-            inst.setValue(avgWordlistWordFreqAttr, numOfWords == 0 ? 0.0 : totalWordlistWordLogFreq / numOfWords);
-            Arrays.sort(wordLogFreqs);
-            if (!optimizeFeatures) {
-                inst.setValue(minWordlistWordFreqAttr, numOfWords == 0 ? 0.0 : wordLogFreqs[0]);
+        }
+        Instance inst = null;
+        for (Dataset ds : datasets) {
+            if (!ds.outlets.contains(outlet)) {
+                continue;
             }
-            inst.setValue(medWordlistWordFreqAttr, numOfWords == 0 ? 0.0 : wordLogFreqs[numOfWords / 2]);
-            inst.setValue(maxWordlistWordFreqAttr, numOfWords == 0 ? 0.0 : wordLogFreqs[numOfWords - 1]);
-
-            inst.setValue(avgWordLengthAttr, ((double) totalWordChars) / numOfWords);
-            Arrays.sort(wordLengths);
-            inst.setValue(minWordLengthAttr, wordLengths[0]);
-            inst.setValue(medWordLengthAttr, wordLengths[numOfWords / 2]);
-            inst.setValue(maxWordLengthAttr, wordLengths[numOfWords - 1]);
-
-            // lemma freq + freq lemmata
-            double totalIsrablogLemmaLogFreq = 0.0;
-            double[] lemLogFreqs = new double[numOfLemmata];
-            i = 0;
-            for (String lem : rawLem) {
-                // lemma freq
-                Integer f = lemmaFreqTable.get(lem);
-                if (f == null || f < 10) {
-                    f = 5;
-                }
-                double logFreq = Math.log(f);
-                lemLogFreqs[i] = logFreq;
-                totalIsrablogLemmaLogFreq += logFreq;
-                i++;
-
-                // freq lemmata
-                if (freqJanLemmataAttrs == null) {
-                    continue;
+            if (inst == null) {
+                int o = Outlet.valueOf(outlet).ordinal();
+                long start = System.nanoTime();
+                inst = toInstance(columns, ds.features);
+                featuresMetrics[o].recordSince(start);
+                headlinesMetric.incrementAndGet();
+                if (kernel.alignmentFailed) {
+                    alignmentFailureMetrics[o].incrementAndGet();
                 }
-                for (int fjl = 0; fjl < 50; fjl++) {
-                    if (ProcessedData.topFiftyJanLemmata[fjl].equals(lem)) {
-                        Attribute attr = freqJanLemmataAttrs[fjl];
-                        inst.setValue(attr, inst.value(attr) + 1);
-                    }
+            } else {
+                // same attributes in same order, only the class (and ID) attribute differ
+                inst = (Instance) inst.copy();
+                if (setIds) {
+                    inst.setValue(ds.features.idAttr, columns[0] + ":" + outlet);
                 }
+                inst.setValue(ds.features.outletAttr, outlet);
             }
-            inst.setValue(avgIsrablogLemmaFreqAttr, numOfLemmata == 0 ? 0.0 : totalIsrablogLemmaLogFreq / numOfLemmata);
-            Arrays.sort(lemLogFreqs);
-            if (!optimizeFeatures) {
-                inst.setValue(minIsrablogLemmaFreqAttr, numOfLemmata == 0 ? 0.0 : lemLogFreqs[0]);
-            }
-            inst.setValue(medIsrablogLemmaFreqAttr, numOfLemmata == 0 ? 0.0 : lemLogFreqs[numOfLemmata / 2]);
-            inst.setValue(maxIsrablogLemmaFreqAttr, numOfLemmata == 0 ? 0.0 : lemLogFreqs[numOfLemmata - 1]);
-
-            // affix letters
-            int totalAffixLetters = 0;
-            try {
-                int shift = 0;
-                for (int j = 0; j < numOfWords; j++) {
-                    String raw = rawWords[j];
-                    if (isPunct(raw) || raw.trim().isEmpty()) {
-                        shift++;
-                        continue;
-                    }
-                    String lem = rawLem[j - shift];
-                    for (char c : raw.toCharArray()) {
-                        String cs = "" + c;
-                        if (!lem.contains(cs) && HEB_LETTERS.contains(cs)) {
-                            totalAffixLetters++;
-                            Attribute val = affixLetterAttrs.get(c);
-                            if (val != null) {
-                                inst.setValue(val, inst.value(val) + 1);
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.out.println("Failed alignment: " + rawTitle + "\t" + lemTitle);
-                wordLemmaAlignmentFails++;
-            }
-            if (!optimizeFeatures) {
-                inst.setValue(totalAffixLettersAttr, totalAffixLetters);
-                inst.setValue(affixLettersPerWordAttr, ((double) totalAffixLetters) / numOfWords);
-                inst.setValue(affixLettersPerCharAttr, ((double) totalAffixLetters) / numOfChars);
-            }
-
-            // class: outlet
-            inst.setValue(outletAttr, outlet);
+            ds.add(inst);
+        }
+    }
 
-            instances.add(inst);
-            written++;
+    /**
+     * Computes the features of a single headline.
+     * @param columns time-changed, outlet, epochs, raw, lemmatized
+     */
+    Instance toInstance(String[] columns, Features f) {
+        String outlet = columns[1];
+        String rawTitle = columns[3];
+        String lemTitle = columns[4];
+
+        FeatureKernel k = kernel;
+        k.compute(rawTitle, lemTitle);
+        if (k.alignmentFailed) {
+            System.out.println("Failed alignment: " + rawTitle + "\t" + lemTitle);
+            wordLemmaAlignmentFails++;
+        }
 
-            line = in.readLine();
+        double[] values = f.values;
+        Arrays.fill(values, 0, f.lemmaAttrsStart, 0.0);
+        Arrays.fill(values, f.lemmaAttrsEnd, values.length, 0.0);
+        values[f.numOfCharsAttr.index()] = k.numOfChars;
+        values[f.numOfPunctsAttr.index()] = k.numOfPuncts;
+        if (!optimizeFeatures) {
+            values[f.epochCountAttr.index()] = Integer.parseInt(columns[2]);
         }
-        in.close();
+        values[f.numOfWordsAttr.index()] = k.numOfWords;
 
-        if (instances != null) {
-            ArffSaver saver = new ArffSaver();
-            saver.setInstances(instances);
-            saver.setFile(new File(outFileLocation));
-            saver.writeBatch();
+        values[f.avgWordlistWordFreqAttr.index()] = k.avgWordLogFreq;
+        if (!optimizeFeatures) {
+            values[f.minWordlistWordFreqAttr.index()] = k.minWordLogFreq;
         }
+        values[f.medWordlistWordFreqAttr.index()] = k.medWordLogFreq;
+        values[f.maxWordlistWordFreqAttr.index()] = k.maxWordLogFreq;
 
-        System.out.println("Finished! Wrote " + written + " vectors with " + badLineInputs + " bad inputs and "
-                        + wordLemmaAlignmentFails + " alignment failures.");
-    }
+        values[f.avgWordLengthAttr.index()] = k.avgWordLength;
+        values[f.minWordLengthAttr.index()] = k.minWordLength;
+        values[f.medWordLengthAttr.index()] = k.medWordLength;
+        values[f.maxWordLengthAttr.index()] = k.maxWordLength;
 
-    private static int noPunctLength(String iText) {
-        return iText.length() - countPuncts(iText);
-    }
+        values[f.avgIsrablogLemmaFreqAttr.index()] = k.avgLemmaLogFreq;
+        if (!optimizeFeatures) {
+            values[f.minIsrablogLemmaFreqAttr.index()] = k.minLemmaLogFreq;
+        }
+        values[f.medIsrablogLemmaFreqAttr.index()] = k.medLemmaLogFreq;
+        values[f.maxIsrablogLemmaFreqAttr.index()] = k.maxLemmaLogFreq;
 
-    @SuppressWarnings("resource")
-    private static Map<String, Integer> readFreqTable(String iFileLocation) throws FileNotFoundException, IOException {
-        Map<String, Integer> freqTable = new HashMap<>();
-        BufferedReader freqFile = new BufferedReader(new UTF8Reader(new FileInputStream(new File(iFileLocation))));
-        String freqLine = freqFile.readLine();
-        while (freqLine != null) {
-            String[] wordFreq = freqLine.split("\\t");
-            if (wordFreq.length != 2) {
-                continue;
+        for (int l = 0; l < f.affixLetterAttrsByLetter.length; l++) {
+            if (f.affixLetterAttrsByLetter[l] != null) {
+                values[f.affixLetterAttrsByLetter[l].index()] = k.affixLetters[l];
             }
-            freqTable.put(wordFreq[0], Integer.parseInt(wordFreq[1]));
-            freqLine = freqFile.readLine();
         }
-        freqFile.close();
-        return freqTable;
-    }
+        if (!optimizeFeatures) {
+            values[f.totalAffixLettersAttr.index()] = k.totalAffixLetters;
+            values[f.affixLettersPerWordAttr.index()] = ((double) k.totalAffixLetters) / k.numOfWords;
+            values[f.affixLettersPerCharAttr.index()] = ((double) k.totalAffixLetters) / k.numOfChars;
+        }
 
-    private static int countPuncts(String iText) {
-        int punctCount = 0;
-        for (char c : iText.toCharArray()) {
-            if (isPunct(Character.toString(c)))
-                punctCount++;
+        Instance inst = sparseInstance(values, f.lemmaAttrsStart, f.lemmaAttrsEnd, k);
+        if (setIds) {
+            inst.setValue(f.idAttr, columns[0] + ":" + outlet);
         }
-        return punctCount;
+        // class: outlet
+        inst.setValue(f.outletAttr, outlet);
+
+        return inst;
     }
 
-    private static boolean isPunct(String s) {
-        Matcher m = punctPattern.matcher(s);
-        return m.matches();
+    /**
+     * Builds the instance from its values outside the lemma attributes and from the kernel's lemma counts, without
+     * going over all of the lemma attributes, which may be many.
+     */
+    private static Instance sparseInstance(double[] values, int lemmaAttrsStart, int lemmaAttrsEnd, FeatureKernel k) {
+        int numOfValues = k.numOfLemmaIds;
+        for (int i = 0; i < values.length; i++) {
+            if (i == lemmaAttrsStart) {
+                i = lemmaAttrsEnd - 1;
+            } else if (values[i] != 0.0) {
+                numOfValues++;
+            }
+        }
+        double[] sparseValues = new double[numOfValues];
+        int[] indices = new int[numOfValues];
+        int v = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == lemmaAttrsStart) {
+                for (int l = 0; l < k.numOfLemmaIds; l++) {
+                    int id = k.lemmaIds[l];
+                    indices[v] = lemmaAttrsStart + id;
+                    sparseValues[v++] = k.lemmaCounts[id];
+                }
+                i = lemmaAttrsEnd - 1;
+            } else if (values[i] != 0.0) {
+                indices[v] = i;
+                sparseValues[v++] = values[i];
+            }
+        }
+        return new SparseInstance(1.0, sparseValues, indices, values.length);
     }
 
     private static List<String> outletList() {
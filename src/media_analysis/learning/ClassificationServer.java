@@ -0,0 +1,298 @@
+package media_analysis.learning;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import media_analysis.Configuration;
+import media_analysis.features.NewsOutletPredictorFeatureExtractor;
+import media_analysis.nlp.LemmaCache;
+import media_analysis.nlp.TokenLemmatizer;
+import media_analysis.utils.LatencyHistogram;
+import media_analysis.utils.MappedStringTable;
+import media_analysis.utils.Metrics;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP service telling which outlet headlines look like, using the model saved by
+ * {@link NewsOutletPredictorTrainer} with the same configuration file. Hspell, the frequency tables and the model are
+ * loaded once at startup, for as many workers as threads, so requests only pay for lemmatizing and classifying.
+ * Listens on the loopback interface only.
+ * POST /classify: a headline per line (UTF-8). Responds with a line of the outlets, then a line per headline: the
+ * predicted outlet and its probability for each outlet, tab-delimited; "?" alone for a headline without words.
+ * GET /metrics: request counts and latency quantiles, followed by the process's {@link Metrics} (e.g. lemma
+ * lookups by source), in the Prometheus text format.
+ * @author yuvalp
+ *
+ */
+public class ClassificationServer {
+
+    public static final int DEFAULT_PORT = 8642;
+    /** Lemmatized and classified by each worker before serving, to load hspell and warm up */
+    private static final String WARM_UP_HEADLINE = "ראש הממשלה נפגש הבוקר עם נשיא המדינה";
+    private static final String TSV_TYPE = "text/tab-separated-values; charset=utf-8";
+
+    private final Instances header;
+    private final List<String> outlets = new ArrayList<>();
+    private final BlockingQueue<Worker> workers;
+    private HttpServer server = null;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong badRequests = new AtomicLong();
+    private final AtomicLong headlines = new AtomicLong();
+    private final AtomicLong headlinesWithoutWords = new AtomicLong();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram headlineLatency = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ClassificationServer <conf-file> [port] [num-of-threads] "
+                            + "[hspell-snapshot-location]");
+            return;
+        }
+        Configuration conf = new Configuration(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        MappedStringTable snapshot = args.length > 3 ? new MappedStringTable(new File(args[3])) : null;
+
+        final ClassificationServer cs = new ClassificationServer(conf, threads, snapshot);
+        cs.start(port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                cs.stop();
+            }
+
+        });
+        System.out.println("Serving " + cs.outlets + " on http://localhost:" + port + "/classify with " + threads
+                        + " threads");
+    }
+
+    /**
+     * Loads the model saved under {@link Configuration#TRAIN_MODEL_KEY} and a worker per thread.
+     * @param snapshot shared by all workers, may be null
+     */
+    public ClassificationServer(Configuration conf, int threads, MappedStringTable snapshot) throws Exception {
+        Object[] saved = SerializationHelper.readAll(conf.get(Configuration.TRAIN_MODEL_KEY));
+        Classifier model = (Classifier) saved[0];
+        header = (Instances) saved[1];
+        Attribute classAttr = header.classAttribute();
+        for (int v = 0; v < classAttr.numValues(); v++) {
+            outlets.add(classAttr.value(v));
+        }
+
+        LemmaCache cache = new LemmaCache(LemmaCache.DEFAULT_CAPACITY);
+        workers = new ArrayBlockingQueue<>(threads);
+        for (int t = 0; t < threads; t++) {
+            // classifiers make no promise of thread safety, so each worker has a copy
+            Classifier workerModel = t == 0 ? model : AbstractClassifier.makeCopy(model);
+            workers.add(new Worker(new NewsOutletPredictorFeatureExtractor(conf), new TokenLemmatizer(snapshot, cache),
+                            workerModel));
+        }
+    }
+
+    public void start(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/classify", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleClassify(exchange);
+            }
+
+        });
+        server.createContext("/metrics", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "text/plain; version=0.0.4", metrics());
+            }
+
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+        }
+        for (Worker w : workers) {
+            w.lemmatizer.close();
+        }
+    }
+
+    private void handleClassify(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        if (!exchange.getRequestMethod().equals("POST")) {
+            badRequests.incrementAndGet();
+            respond(exchange, 405, "text/plain", "POST a headline per line\n");
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF8"));
+        String line = in.readLine();
+        while (line != null) {
+            batch.add(line.trim());
+            line = in.readLine();
+        }
+        in.close();
+
+        StringBuilder sb = new StringBuilder("predicted");
+        for (String o : outlets) {
+            sb.append("\t").append(o);
+        }
+        sb.append("\n");
+        Worker w;
+        try {
+            w = workers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "text/plain", "Shutting down\n");
+            return;
+        }
+        try {
+            for (String headline : batch) {
+                long headlineStart = System.nanoTime();
+                double[] dist = w.classify(headline);
+                headlineLatency.recordSince(headlineStart);
+                headlines.incrementAndGet();
+                if (dist == null) {
+                    headlinesWithoutWords.incrementAndGet();
+                    sb.append("?\n");
+                    continue;
+                }
+                sb.append(outlets.get(Utils.maxIndex(dist)));
+                for (double p : dist) {
+                    sb.append("\t").append(String.format(Locale.ENGLISH, "%.4f", p));
+                }
+                sb.append("\n");
+            }
+        } catch (Exception e) {
+            badRequests.incrementAndGet();
+            respond(exchange, 500, "text/plain", e + "\n");
+            return;
+        } finally {
+            workers.add(w);
+        }
+        respond(exchange, 200, TSV_TYPE, sb.toString());
+        requestLatency.recordSince(start);
+    }
+
+    private String metrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE classify_requests_total counter\n");
+        sb.append("classify_requests_total ").append(requests.get()).append("\n");
+        sb.append("# TYPE classify_bad_requests_total counter\n");
+        sb.append("classify_bad_requests_total ").append(badRequests.get()).append("\n");
+        sb.append("# TYPE classify_headlines_total counter\n");
+        sb.append("classify_headlines_total ").append(headlines.get()).append("\n");
+        sb.append("# TYPE classify_headlines_without_words_total counter\n");
+        sb.append("classify_headlines_without_words_total ").append(headlinesWithoutWords.get()).append("\n");
+        sb.append("# TYPE classify_request_seconds summary\n");
+        requestLatency.appendPrometheus(sb, "classify_request_seconds", "");
+        sb.append("# TYPE classify_headline_seconds summary\n");
+        headlineLatency.appendPrometheus(sb, "classify_headline_seconds", "");
+        sb.append(Metrics.render());
+        return sb.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF8");
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Everything that is not thread safe, for one request at a time.
+     */
+    private class Worker {
+
+        final NewsOutletPredictorFeatureExtractor extractor;
+        final TokenLemmatizer lemmatizer;
+        final Classifier model;
+        /** Index in the extracted features of each of the model's attributes, -1 for the class */
+        final int[] featureIndices;
+        final double[] values;
+
+        Worker(NewsOutletPredictorFeatureExtractor iExtractor, TokenLemmatizer iLemmatizer, Classifier iModel)
+                        throws Exception {
+            extractor = iExtractor;
+            lemmatizer = iLemmatizer;
+            model = iModel;
+            lemmatizer.preload();
+
+            Instances extracted = extractor.headlineInstance(WARM_UP_HEADLINE, lemmatizer.lemmatize(WARM_UP_HEADLINE),
+                            1, outlets).dataset();
+            featureIndices = new int[header.numAttributes()];
+            for (int a = 0; a < featureIndices.length; a++) {
+                if (a == header.classIndex()) {
+                    featureIndices[a] = -1;
+                    continue;
+                }
+                Attribute feature = extracted.attribute(header.attribute(a).name());
+                if (feature == null) {
+                    throw new IllegalArgumentException("Model attribute " + header.attribute(a).name()
+                                    + " is not extracted with this configuration");
+                }
+                featureIndices[a] = feature.index();
+            }
+            values = new double[featureIndices.length];
+            classify(WARM_UP_HEADLINE);
+        }
+
+        /**
+         * @return probability of each outlet, or null if the headline has no words
+         */
+        double[] classify(String headline) throws Exception {
+            if (headline.isEmpty()) {
+                return null;
+            }
+            Instance features;
+            try {
+                // a headline just seen has survived a single epoch
+                features = extractor.headlineInstance(headline, lemmatizer.lemmatize(headline), 1, outlets);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+            for (int a = 0; a < values.length; a++) {
+                values[a] = featureIndices[a] < 0 ? Utils.missingValue() : features.value(featureIndices[a]);
+            }
+            Instance inst = new DenseInstance(1.0, values);
+            inst.setDataset(header);
+            return model.distributionForInstance(inst);
+        }
+
+    }
+
+}
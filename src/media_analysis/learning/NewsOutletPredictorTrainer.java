@@ -0,0 +1,212 @@
+package media_analysis.learning;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import media_analysis.Configuration;
+import media_analysis.features.NewsOutletPredictorFeatureExtractor;
+import media_analysis.utils.Metrics;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+
+/**
+ * Trains and cross-validates an outlet classifier on the features of {@link NewsOutletPredictorFeatureExtractor},
+ * extracted in memory with the same configuration file, and writes a summary like the Weka explorer's. The folds'
+ * models are built on a thread pool, and a RandomForest's trees on the threads left to each model; folds are drawn
+ * and evaluated as in Evaluation.crossValidateModel, so results are the explorer's for the same seed.
+ * @author yuvalp
+ *
+ */
+public class NewsOutletPredictorTrainer {
+
+    private static final String DEFAULT_CLASSIFIER = "weka.classifiers.trees.RandomForest";
+
+    private final String classifierSpec;
+    private final int folds;
+    private final int threads;
+    private final int seed;
+    private final String removedAttributes;
+
+    public NewsOutletPredictorTrainer(Configuration conf) {
+        String spec = conf.get(Configuration.TRAIN_CLASSIFIER_KEY);
+        classifierSpec = spec.isEmpty() ? DEFAULT_CLASSIFIER : spec;
+        folds = conf.getInt(Configuration.TRAIN_FOLDS_KEY, 10);
+        threads = conf.getInt(Configuration.TRAIN_THREADS_KEY, Runtime.getRuntime().availableProcessors());
+        seed = conf.getInt(Configuration.TRAIN_SEED_KEY, 1);
+        removedAttributes = conf.get(Configuration.TRAIN_REMOVE_KEY);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: NewsOutletPredictorTrainer <conf-file>");
+            return;
+        }
+
+        Metrics.startExport();
+        Configuration conf = new Configuration(args[0]);
+        NewsOutletPredictorFeatureExtractor extractor = new NewsOutletPredictorFeatureExtractor(conf);
+        Instances data = extractor.extractInstances(conf.get(Configuration.INPUT_KEY),
+                        NewsOutletPredictorFeatureExtractor.outlets(conf));
+
+        NewsOutletPredictorTrainer trainer = new NewsOutletPredictorTrainer(conf);
+        data = trainer.prepare(data);
+        Evaluation eval = trainer.crossValidate(data);
+        System.out.println(eval.toSummaryString("=== Summary ===\n", false));
+        Classifier model = trainer.train(data);
+
+        String summaryLocation = conf.get(Configuration.TRAIN_SUMMARY_KEY);
+        if (summaryLocation.isEmpty()) {
+            summaryLocation = conf.get(Configuration.OUTPUT_KEY) + "-summary.txt";
+        }
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(new File(summaryLocation)), "UTF8");
+        out.append(trainer.summary(data, eval, model));
+        out.flush();
+        out.close();
+        System.out.println("Wrote summary to " + summaryLocation);
+
+        String modelLocation = conf.get(Configuration.TRAIN_MODEL_KEY);
+        if (!modelLocation.isEmpty()) {
+            // header goes along, to map vectors of the full feature set onto the model's attributes
+            SerializationHelper.writeAll(modelLocation, new Object[] { model, new Instances(data, 0) });
+            System.out.println("Wrote model to " + modelLocation);
+        }
+        Metrics.finish();
+    }
+
+    /**
+     * Drops the ID attribute and the configured attributes (a Weka range, as in the explorer's Remove filter).
+     */
+    public Instances prepare(Instances data) throws Exception {
+        Attribute id = data.attribute("ID");
+        if (id != null) {
+            data = new Instances(data);
+            data.deleteAttributeAt(id.index());
+        }
+        if (!removedAttributes.isEmpty()) {
+            Remove remove = new Remove();
+            remove.setAttributeIndices(removedAttributes);
+            remove.setInputFormat(data);
+            data = Filter.useFilter(data, remove);
+        }
+        data.setClassIndex(data.attribute("class").index());
+        return data;
+    }
+
+    /**
+     * Stratified cross-validation: folds are drawn in order, models built in parallel, and evaluated in order. A fold
+     * is only drawn once a pool thread is free for it, so that no more training sets than threads are held at once.
+     */
+    public Evaluation crossValidate(Instances data) throws Exception {
+        Random random = new Random(seed);
+        Instances randomized = new Instances(data);
+        randomized.randomize(random);
+        randomized.stratify(folds);
+
+        final int slotsPerModel = Math.max(1, threads / folds);
+        int parallelFolds = Math.max(1, Math.min(threads, folds));
+        Evaluation eval = new Evaluation(randomized);
+        Instances[] trains = new Instances[folds];
+        Instances[] tests = new Instances[folds];
+        List<Future<Classifier>> models = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelFolds);
+        try {
+            for (int i = 0; i < folds + parallelFolds; i++) {
+                // the oldest fold outstanding is evaluated before another is drawn
+                int done = i - parallelFolds;
+                if (done >= 0) {
+                    Classifier c = awaitModel(models.get(done));
+                    models.set(done, null);
+                    eval.setPriors(trains[done]);
+                    eval.evaluateModel(c, tests[done]);
+                    trains[done] = null;
+                    tests[done] = null;
+                    System.out.println("Evaluated fold " + (done + 1) + "/" + folds);
+                }
+                if (i < folds) {
+                    // drawn here, in fold order, since trainCV takes from the shared random
+                    final Instances train = randomized.trainCV(folds, i, random);
+                    trains[i] = train;
+                    tests[i] = randomized.testCV(folds, i);
+                    models.add(pool.submit(new Callable<Classifier>() {
+
+                        @Override
+                        public Classifier call() throws Exception {
+                            Classifier c = newClassifier(slotsPerModel);
+                            c.buildClassifier(train);
+                            return c;
+                        }
+
+                    }));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return eval;
+    }
+
+    /**
+     * @return a model of the whole dataset, using all threads
+     */
+    public Classifier train(Instances data) throws Exception {
+        Classifier c = newClassifier(threads);
+        c.buildClassifier(data);
+        return c;
+    }
+
+    private Classifier newClassifier(int executionSlots) throws Exception {
+        String[] options = Utils.splitOptions(classifierSpec);
+        String className = options[0];
+        options[0] = "";
+        Classifier c = AbstractClassifier.forName(className, options);
+        if (c instanceof RandomForest) {
+            ((RandomForest) c).setNumExecutionSlots(executionSlots);
+        }
+        return c;
+    }
+
+    private static Classifier awaitModel(Future<Classifier> f) throws Exception {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new Exception("Training failed", e.getCause());
+        }
+    }
+
+    private String summary(Instances data, Evaluation eval, Classifier model) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== Run information ===\n\n");
+        sb.append("Scheme:       ").append(classifierSpec).append("\n");
+        sb.append("Relation:     ").append(data.relationName()).append("\n");
+        sb.append("Instances:    ").append(data.numInstances()).append("\n");
+        sb.append("Attributes:   ").append(data.numAttributes()).append("\n");
+        sb.append("Test mode:    ").append(folds).append("-fold cross-validation, seed ").append(seed).append("\n\n");
+        sb.append(eval.toSummaryString("=== Summary ===\n", false)).append("\n");
+        sb.append(eval.toClassDetailsString("=== Detailed Accuracy By Class ===\n")).append("\n");
+        sb.append(eval.toMatrixString("=== Confusion Matrix ===\n")).append("\n");
+        sb.append("=== Classifier model (full training set) ===\n\n").append(model).append("\n");
+        return sb.toString();
+    }
+
+}
@@ -1,18 +1,42 @@
 package media_analysis.mining;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import media_analysis.Outlet;
 import media_analysis.utils.Consts;
+import media_analysis.utils.CountingInputStream;
+import media_analysis.utils.LatencyHistogram;
+import media_analysis.utils.Metrics;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -28,8 +52,37 @@ public class ExtractTitlesFromHtml extends Consts {
 
     private static final DateFormat df = new SimpleDateFormat(DATE_PATTERN, Locale.ENGLISH);    
     
+    /** Number of date dirs parsed ahead of the merge point, per worker thread */
+    private static final int DATES_AHEAD_PER_THREAD = 4;
+
+    private static final String STAGE = "extract-titles";
+    private static final AtomicLong datesMetric = Metrics.items(STAGE);
+    // per outlet
+    private static final LatencyHistogram[] parseMetrics = new LatencyHistogram[Outlet.values().length];
+    private static final AtomicLong[] bytesReadMetrics = new AtomicLong[Outlet.values().length];
+    private static final AtomicLong[] notFoundMetrics = new AtomicLong[Outlet.values().length];
+    private static final AtomicLong[] emptyMetrics = new AtomicLong[Outlet.values().length];
+    static {
+        for (Outlet o : Outlet.values()) {
+            int i = o.ordinal();
+            parseMetrics[i] = Metrics.histogram("parse_seconds", Metrics.labels("outlet", o.name()));
+            bytesReadMetrics[i] = Metrics.counter("bytes_read_total", Metrics.labels("stage", STAGE, "outlet",
+                            o.name()));
+            notFoundMetrics[i] = Metrics.failures(STAGE, o.name(), "not-found");
+            emptyMetrics[i] = Metrics.failures(STAGE, o.name(), "empty");
+        }
+    }
+
     private String baseDir;
     private String[] dateDirs;
+    private boolean streaming = false;
+    private boolean fromHtsCache = false;
+    private PageHashCache pageHashes = null;
+
+    private MiningOutletStats[] aggregateStats;
+    private String[] currHeadlines;
+    private int[] headEpoch;
+    private String lastDate;
     
     public ExtractTitlesFromHtml(String iBaseDir) throws ParseException {
         iBaseDir = iBaseDir.replaceAll("\\\\", "/");
@@ -37,6 +90,28 @@ public class ExtractTitlesFromHtml extends Consts {
         initDateDirs();
     }
 
+    /**
+     * @param iStreaming whether to find headlines with {@link HeadlineScanner} instead of building a Jsoup Document
+     */
+    public void setStreaming(boolean iStreaming) {
+        streaming = iStreaming;
+    }
+
+    /**
+     * @param iFromHtsCache whether to read pages from each snapshot's {@link HtsCachePages#CACHE_FILE} instead of the
+     *            mirrored html files
+     */
+    public void setFromHtsCache(boolean iFromHtsCache) {
+        fromHtsCache = iFromHtsCache;
+    }
+
+    /**
+     * @param iHashPages whether to skip parsing pages identical to the outlet's previous one, see {@link PageHashCache}
+     */
+    public void setHashPages(boolean iHashPages) {
+        pageHashes = iHashPages ? new PageHashCache() : null;
+    }
+
     private void initDateDirs() throws ParseException {
         TreeMap<Date, String> dateDirList = new TreeMap<>();
         File[] dirs = new File(baseDir + Outlet.HAARETZ.dirName()).listFiles();
@@ -51,10 +126,66 @@ public class ExtractTitlesFromHtml extends Consts {
         return baseDir + o.dirName() + "/" + date + "/" + o.domain() + o.indexFile();
     }
 
+    private InputStream openPage(Outlet o, String date) throws IOException {
+        if (fromHtsCache) {
+            return HtsCachePages.open(new File(baseDir + o.dirName() + "/" + date), o);
+        }
+        return new FileInputStream(getPage(o, date));
+    }
+
     private String getHeadline(Outlet o, String date) throws IOException {
-        String demoPage = getPage(o, date);
-        Document doc = Jsoup.parse(new File(demoPage), o.charset());
-        return findHeadlinesRecursively(doc, o).replaceAll("[0-9]+", "0");
+        InputStream page = new CountingInputStream(openPage(o, date), bytesReadMetrics[o.ordinal()]);
+        byte[] digest = null;
+        if (pageHashes != null) {
+            byte[] bytes;
+            try {
+                bytes = readFully(page);
+            } finally {
+                page.close();
+            }
+            digest = PageHashCache.digest(bytes);
+            String cached = pageHashes.get(o, digest);
+            if (cached != null) {
+                return cached;
+            }
+            page = new ByteArrayInputStream(bytes);
+        }
+
+        String headline;
+        long start = System.nanoTime();
+        try {
+            headline = parseHeadline(page, o, streaming);
+        } finally {
+            page.close();
+        }
+        parseMetrics[o.ordinal()].recordSince(start);
+        headline = headline.replaceAll("[0-9]+", "0");
+        if (pageHashes != null) {
+            pageHashes.put(o, digest, headline);
+        }
+        return headline;
+    }
+
+    /**
+     * @return main headline of the page, with its streaming scanner or its DOM
+     */
+    static String parseHeadline(InputStream page, Outlet o, boolean streaming) throws IOException {
+        if (streaming) {
+            return new HeadlineScanner(o).scan(page);
+        }
+        Document doc = Jsoup.parse(page, o.charset(), "");
+        return findHeadlinesRecursively(doc, o);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        byte[] buf = new byte[1 << 13];
+        int read = in.read(buf);
+        while (read >= 0) {
+            bytes.write(buf, 0, read);
+            read = in.read(buf);
+        }
+        return bytes.toByteArray();
     }
 
     private static String findHeadlinesRecursively(Element doc, Outlet o) {
@@ -73,81 +204,262 @@ public class ExtractTitlesFromHtml extends Consts {
 
     public static void main(String[] args) throws IOException, ParseException {
         if (args.length < 2) {
-            System.out.println("Usage: ExtractTitlesFromHtml <in-dir> <out-location>");
+            System.out.println("Usage: ExtractTitlesFromHtml <in-dir> <out-location> [num-of-threads] [dom|stream][-zip][-hash] "
+                            + "[checkpoint-location]");
             return;
         }
         
+        Metrics.startExport();
         ExtractTitlesFromHtml extractor = new ExtractTitlesFromHtml(args[0]);
-        extractor.extract(args[1]);
-        
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        extractor.setStreaming(args.length > 3 && args[3].startsWith("stream"));
+        extractor.setFromHtsCache(args.length > 3 && args[3].contains("-zip"));
+        extractor.setHashPages(args.length > 3 && args[3].contains("-hash"));
+        if (args.length > 4) {
+            extractor.extractIncremental(args[1], args[4], threads);
+        } else {
+            extractor.extract(args[1], threads);
+        }
+        Metrics.finish();
     }
 
     public void extract(String outLocation) throws IOException {
-        
+        extract(outLocation, 1);
+    }
+
+    /**
+     * Same output as the single-threaded run: pages are parsed concurrently, but merged into the lingering headlines
+     * in date and outlet order.
+     */
+    public void extract(String outLocation, int threads) throws IOException {
+        OutputStreamWriter out = new OutputStreamWriter(new PrintStream(new File(outLocation), "UTF8"), "UTF8");
+        extract(out, threads);
+        out.close();
+    }
+
+    /**
+     * Writes all headlines to the given writer, e.g. a pipe to the next stage, flushing it every 100 dates but
+     * leaving it open.
+     */
+    public void extract(Writer out, int threads) throws IOException {
+
         // initialize counters etc.
+        initState();
+
+        int written = extractDates(out, dateDirs, threads);
+        for (Outlet o : Outlet.values()) {
+            int i = o.ordinal();
+            out.append(lastDate + "\t" + o + "\t" + headEpoch[i] + "\t" + currHeadlines[i] + "\n");
+        }
+        out.flush();
+        printStats(written);
+    }
+
+    /**
+     * Processes only date dirs newer than those recorded in the checkpoint file, appending to existing output.
+     * Headlines still lingering at the end of the run are not written, but kept in the checkpoint so that the next run
+     * continues counting their epochs. Without a checkpoint file, starts from the first date dir.
+     */
+    public void extractIncremental(String outLocation, String checkpointLocation, int threads) throws IOException,
+                    ParseException {
+        File checkpoint = new File(checkpointLocation);
+        String[] newDateDirs = dateDirs;
+        if (checkpoint.exists()) {
+            readCheckpoint(checkpoint);
+        } else {
+            initState();
+        }
+        // empty if no date dir was processed yet, in which case all are new
+        if (!lastDate.isEmpty()) {
+            Date last = df.parse(lastDate);
+            int first = 0;
+            while (first < dateDirs.length && !df.parse(dateDirs[first]).after(last)) {
+                first++;
+            }
+            newDateDirs = Arrays.copyOfRange(dateDirs, first, dateDirs.length);
+        }
+        System.out.println("Extracting " + newDateDirs.length + " new dates after " + lastDate);
+
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(outLocation, true), "UTF8");
+        int written = extractDates(out, newDateDirs, threads);
+        out.flush();
+        out.close();
+        writeCheckpoint(checkpoint);
+        printStats(written);
+    }
+
+    private void initState() {
         int numOfOutlets = Outlet.values().length;
-        MiningOutletStats[] aggregateStats = new MiningOutletStats[numOfOutlets];
-        String[] currHeadlines = new String[numOfOutlets];
-        int[] headEpoch = new int[numOfOutlets];
+        aggregateStats = new MiningOutletStats[numOfOutlets];
+        currHeadlines = new String[numOfOutlets];
+        headEpoch = new int[numOfOutlets];
         for (int i = 0; i < numOfOutlets; i++) {
             currHeadlines[i] = null;
             headEpoch[i] = 0;
             aggregateStats[i] = new MiningOutletStats();
         }
+        lastDate = "";
+    }
 
-        OutputStreamWriter out = new OutputStreamWriter(new PrintStream(new File(outLocation), "UTF8"), "UTF8");
-        
-        String lastDate = "";
-        int written = 0;
-        for (String d : dateDirs) {
-            for (Outlet o : Outlet.values()) {
-                int i = o.ordinal();
-                MiningOutletStats stats = aggregateStats[i];
-                String currHead = currHeadlines[i];
-
-                String h = "";
-                try {
-                    h = getHeadline(o, d);
-                } catch (Exception e) {
-                    stats.headlinesNotFound++;
-                    continue;
-                }
-                if (currHead == null) {
-                    currHeadlines[i] = h;
-                    headEpoch[i] = 1;
-                    continue;
-                }
-                if (h.isEmpty()) {
-                    stats.emptyHeadlines++;
-                    continue;
-                }
-                if (!h.equals(currHead)) {
-                    out.append(d + "\t" + o + "\t" + headEpoch[i] + "\t" + currHeadlines[i] + "\n");
-                    currHeadlines[i] = h;
-                    headEpoch[i] = 1;
-                } else {
-                    headEpoch[i]++;
-                }
-            }
-            written++;
-            if (written % 100 == 0) {
-                out.flush();
-                System.out.println("wrote " + written);
-            }
-            lastDate = d;
+    /**
+     * Checkpoint format: first line is the last date dir processed, then per outlet:
+     * outlet name \tab epochs \tab {@link MiningOutletStats} columns \tab lingering headline (if epochs &gt; 0)
+     */
+    private void readCheckpoint(File checkpoint) throws IOException {
+        initState();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), "UTF8"));
+        String first = in.readLine();
+        lastDate = first == null ? "" : first;
+        String line = in.readLine();
+        while (line != null) {
+            String[] cols = line.split("\t", -1);
+            int i = Outlet.valueOf(cols[0]).ordinal();
+            headEpoch[i] = Integer.parseInt(cols[1]);
+            aggregateStats[i].headlinesNotFound = Integer.parseInt(cols[2]);
+            aggregateStats[i].emptyHeadlines = Integer.parseInt(cols[3]);
+            currHeadlines[i] = headEpoch[i] > 0 ? cols[4] : null;
+            line = in.readLine();
         }
+        in.close();
+    }
+
+    private void writeCheckpoint(File checkpoint) throws IOException {
+        File tmp = new File(checkpoint.getPath() + ".tmp");
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF8");
+        out.append(lastDate + "\n");
         for (Outlet o : Outlet.values()) {
             int i = o.ordinal();
-            out.append(lastDate + "\t" + o + "\t" + headEpoch[i] + "\t" + currHeadlines[i] + "\n");
+            out.append(o + "\t" + headEpoch[i] + "\t" + aggregateStats[i] + "\t"
+                            + (currHeadlines[i] == null ? "" : currHeadlines[i]) + "\n");
         }
         out.flush();
         out.close();
+        Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private int extractDates(Writer out, String[] dates, int threads) throws IOException {
+        int written = 0;
+        if (threads <= 1) {
+            for (String d : dates) {
+                for (Outlet o : Outlet.values()) {
+                    String h = null;
+                    try {
+                        h = getHeadline(o, d);
+                    } catch (Exception e) {
+                        // counted as not found
+                    }
+                    mergeHeadline(out, d, o, h);
+                }
+                written++;
+                datesMetric.incrementAndGet();
+                if (written % 100 == 0) {
+                    out.flush();
+                    System.out.println("wrote " + written);
+                }
+                lastDate = d;
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                Queue<List<Future<String>>> pending = new ArrayDeque<>();
+                int submitted = 0;
+                for (String d : dates) {
+                    while (submitted < dates.length && pending.size() < threads * DATES_AHEAD_PER_THREAD) {
+                        pending.add(submitDate(pool, dates[submitted++]));
+                    }
+                    List<Future<String>> dateHeadlines = pending.remove();
+                    for (Outlet o : Outlet.values()) {
+                        mergeHeadline(out, d, o, awaitHeadline(dateHeadlines.get(o.ordinal())));
+                    }
+                    written++;
+                    datesMetric.incrementAndGet();
+                    if (written % 100 == 0) {
+                        out.flush();
+                        System.out.println("wrote " + written);
+                    }
+                    lastDate = d;
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        return written;
+    }
+
+    private void printStats(int written) {
         System.out.println("Done! Total = " + written);
         System.out.println();
-        System.out.println("outlet\t" + MiningOutletStats.header());
+        System.out.println("outlet\t" + MiningOutletStats.header()
+                        + (pageHashes == null ? "" : "\t" + PageHashCache.header()));
         for (Outlet o : Outlet.values()) {
             int i = o.ordinal();
-            System.out.println(o + "\t" + aggregateStats[i]);
+            System.out.println(o + "\t" + aggregateStats[i] + (pageHashes == null ? "" : "\t" + pageHashes.toString(o)));
+        }
+    }
+
+    /**
+     * Unifies a newly read headline with the outlet's lingering one, writing the latter out once it changes.
+     * @param h headline found in page, or null if the page could not be read
+     */
+    private void mergeHeadline(Writer out, String d, Outlet o, String h) throws IOException {
+        int i = o.ordinal();
+        MiningOutletStats stats = aggregateStats[i];
+        String currHead = currHeadlines[i];
+
+        if (h == null) {
+            stats.headlinesNotFound++;
+            notFoundMetrics[i].incrementAndGet();
+            return;
+        }
+        if (currHead == null) {
+            currHeadlines[i] = h;
+            headEpoch[i] = 1;
+            return;
+        }
+        if (h.isEmpty()) {
+            stats.emptyHeadlines++;
+            emptyMetrics[i].incrementAndGet();
+            return;
+        }
+        if (!h.equals(currHead)) {
+            out.append(d + "\t" + o + "\t" + headEpoch[i] + "\t" + currHeadlines[i] + "\n");
+            currHeadlines[i] = h;
+            headEpoch[i] = 1;
+        } else {
+            headEpoch[i]++;
+        }
+    }
+
+    /**
+     * @return the date's headline tasks, by outlet ordinal
+     */
+    private List<Future<String>> submitDate(ExecutorService pool, final String d) {
+        List<Future<String>> dateHeadlines = new ArrayList<>(Outlet.values().length);
+        for (final Outlet o : Outlet.values()) {
+            dateHeadlines.add(pool.submit(new Callable<String>() {
+
+                @Override
+                public String call() {
+                    try {
+                        return getHeadline(o, d);
+                    } catch (Exception e) {
+                        return null;
+                    }
+                }
+
+            }));
+        }
+        return dateHeadlines;
+    }
+
+    private static String awaitHeadline(Future<String> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for headline", e);
+        } catch (ExecutionException e) {
+            return null;
         }
     }
 
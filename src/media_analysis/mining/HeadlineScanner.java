@@ -0,0 +1,624 @@
+package media_analysis.mining;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import media_analysis.Outlet;
+
+import org.jsoup.parser.Parser;
+
+/**
+ * Streaming alternative to parsing a page into a Jsoup Document and searching it for the main headline.
+ * Tokenizes the html keeping only the stack of open elements (tag name and class attribute), approximates Jsoup's
+ * tree building where it changes element nesting, and collects headline text the way
+ * {@link org.jsoup.nodes.Element#text()} does. The whole page is read, since any outlet's rule may match again
+ * further down. Not thread-safe; use one instance per thread.
+ * @author yuvalp
+ *
+ */
+public class HeadlineScanner {
+
+    private static final Set<String> VOID_TAGS = tagSet("area", "base", "basefont", "bgsound", "br", "col",
+                    "command", "embed", "frame", "hr", "img", "input", "keygen", "link", "meta", "param", "source",
+                    "track", "wbr");
+    /** Contents are data, not text */
+    private static final Set<String> DATA_TAGS = tagSet("script", "style");
+    /** Contents are text, but contain no tags */
+    private static final Set<String> RAW_TEXT_TAGS = tagSet("title", "textarea", "xmp", "iframe", "noembed",
+                    "noframes");
+    private static final Set<String> HEAD_TAGS = tagSet("base", "basefont", "bgsound", "command", "link", "meta",
+                    "title", "noframes", "style", "script", "noscript");
+    /** Jsoup's block tags, which are separated by a space in element text */
+    private static final Set<String> BLOCK_TAGS = tagSet("html", "head", "body", "frameset", "script", "noscript",
+                    "style", "meta", "link", "title", "frame", "noframes", "section", "nav", "aside", "hgroup",
+                    "header", "footer", "p", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol", "pre", "div",
+                    "blockquote", "hr", "address", "figure", "figcaption", "form", "fieldset", "ins", "del", "s", "dl",
+                    "dt", "dd", "li", "table", "caption", "thead", "tfoot", "tbody", "colgroup", "col", "tr", "th",
+                    "td", "video", "audio", "canvas", "details", "menu", "plaintext", "template", "article", "main",
+                    "svg", "math");
+    private static final Set<String> SPECIAL_TAGS = tagSet("address", "applet", "area", "article", "aside", "base",
+                    "basefont", "bgsound", "blockquote", "body", "br", "button", "caption", "center", "col",
+                    "colgroup", "command", "dd", "details", "dir", "div", "dl", "dt", "embed", "fieldset",
+                    "figcaption", "figure", "footer", "form", "frame", "frameset", "h1", "h2", "h3", "h4", "h5", "h6",
+                    "head", "header", "hgroup", "hr", "html", "iframe", "img", "input", "isindex", "li", "link",
+                    "listing", "marquee", "menu", "meta", "nav", "noembed", "noframes", "noscript", "object", "ol",
+                    "p", "param", "plaintext", "pre", "script", "section", "select", "style", "summary", "table",
+                    "tbody", "td", "textarea", "tfoot", "th", "thead", "title", "tr", "ul", "wbr", "xmp");
+    private static final Set<String> CLOSES_P_TAGS = tagSet("address", "article", "aside", "blockquote", "center",
+                    "details", "dir", "div", "dl", "fieldset", "figcaption", "figure", "footer", "header", "hgroup",
+                    "menu", "nav", "ol", "p", "section", "summary", "ul", "h1", "h2", "h3", "h4", "h5", "h6", "pre",
+                    "listing", "form", "plaintext", "hr", "xmp", "li", "dd", "dt");
+    private static final Set<String> HEADING_TAGS = tagSet("h1", "h2", "h3", "h4", "h5", "h6");
+    private static final Set<String> FORMATTING_TAGS = tagSet("a", "b", "big", "code", "em", "font", "i", "nobr",
+                    "s", "small", "strike", "strong", "tt", "u");
+    private static final Set<String> BUTTON_SCOPE_TAGS = tagSet("applet", "caption", "html", "table", "td", "th",
+                    "marquee", "object", "button");
+    private static final Set<String> TABLE_SECTION_TAGS = tagSet("tbody", "thead", "tfoot");
+
+    private final Outlet outlet;
+
+    private Reader in;
+    private final char[] buf = new char[8192];
+    private int pos = 0;
+    private int limit = 0;
+
+    // open elements, outermost first
+    private String[] tags = new String[64];
+    private String[] classes = new String[64];
+    private int depth = 0;
+
+    // headline text of matching elements, in document order, and the stack index of each open one
+    private final List<StringBuilder> matches = new ArrayList<>();
+    private int[] openMatchDepths = new int[8];
+    private StringBuilder[] openMatches = new StringBuilder[8];
+    private int numOfOpenMatches = 0;
+
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder token = new StringBuilder();
+
+    public HeadlineScanner(Outlet o) {
+        outlet = o;
+    }
+
+    /**
+     * @return the same text as collecting {@link Outlet#isMainHeadline(org.jsoup.nodes.Element)} elements from the
+     *         parsed page
+     */
+    public String scan(File page) throws IOException {
+        return scan(new FileInputStream(page));
+    }
+
+    public String scan(InputStream page) throws IOException {
+        reset(new InputStreamReader(page, outlet.charset()));
+        try {
+            int c = read();
+            while (c >= 0) {
+                if (c == '<') {
+                    markup();
+                } else {
+                    if (numOfOpenMatches > 0) {
+                        text.append((char) c);
+                    }
+                }
+                c = read();
+            }
+            flushText(true);
+            while (depth > 0) {
+                pop();
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (StringBuilder m : matches) {
+            String t = m.toString().trim();
+            if (!t.isEmpty()) {
+                if (sb.length() > 0) {
+                    sb.append(" ");
+                }
+                sb.append(t);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void reset(Reader iIn) {
+        in = iIn;
+        pos = 0;
+        limit = 0;
+        depth = 0;
+        matches.clear();
+        numOfOpenMatches = 0;
+        text.setLength(0);
+    }
+
+    // ---- tokenizer ----
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        int c = read();
+        if (c >= 0) {
+            pos--;
+        }
+        return c;
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+    private void markup() throws IOException {
+        int c = peek();
+        if (isLetter(c)) {
+            flushText(true);
+            startTag();
+        } else if (c == '/') {
+            read();
+            if (isLetter(peek())) {
+                flushText(true);
+                endTag(readTagName());
+                skipTo('>');
+            } else {
+                flushText(true);
+                skipTo('>');
+            }
+        } else if (c == '!') {
+            flushText(true);
+            read();
+            if (peek() == '-') {
+                read();
+                if (peek() == '-') {
+                    read();
+                    skipComment();
+                    return;
+                }
+            }
+            skipTo('>');
+        } else if (c == '?') {
+            flushText(true);
+            skipTo('>');
+        } else if (numOfOpenMatches > 0) {
+            text.append('<');
+        }
+    }
+
+    private void skipTo(char end) throws IOException {
+        int c = read();
+        while (c >= 0 && c != end) {
+            c = read();
+        }
+    }
+
+    private void skipComment() throws IOException {
+        // starting at 2 so that "<!-->" and "<!--->" end immediately
+        int dashes = 2;
+        int c = read();
+        while (c >= 0) {
+            if (c == '>' && dashes >= 2) {
+                return;
+            }
+            dashes = c == '-' ? dashes + 1 : 0;
+            c = read();
+        }
+    }
+
+    private String readTagName() throws IOException {
+        token.setLength(0);
+        int c = peek();
+        while (c >= 0 && !isSpace(c) && c != '/' && c != '>') {
+            token.append(Character.toLowerCase((char) read()));
+            c = peek();
+        }
+        return token.toString();
+    }
+
+    private void startTag() throws IOException {
+        String name = readTagName();
+        String classAttr = null;
+        boolean selfClosing = false;
+        int c = read();
+        while (c >= 0 && c != '>') {
+            if (c == '/') {
+                if (peek() == '>') {
+                    read();
+                    selfClosing = true;
+                    break;
+                }
+            } else if (!isSpace(c)) {
+                boolean isClass = readAttributeName(c);
+                c = read();
+                while (isSpace(c)) {
+                    c = read();
+                }
+                if (c != '=') {
+                    // attribute with no value, reconsume
+                    if (c == '>' || c < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                String value = readAttributeValue(isClass);
+                if (isClass) {
+                    classAttr = value.indexOf('&') >= 0 ? Parser.unescapeEntities(value, true) : value;
+                }
+                if (token.length() > 0 && token.charAt(0) == '>') {
+                    // unquoted value ended the tag
+                    break;
+                }
+            }
+            c = read();
+        }
+        startElement(name, classAttr, selfClosing);
+    }
+
+    /**
+     * @return whether the attribute is "class"
+     */
+    private boolean readAttributeName(int first) throws IOException {
+        token.setLength(0);
+        token.append(Character.toLowerCase((char) first));
+        int c = peek();
+        while (c >= 0 && !isSpace(c) && c != '=' && c != '>' && c != '/') {
+            token.append(Character.toLowerCase((char) read()));
+            c = peek();
+        }
+        return token.length() == 5 && token.toString().equals("class");
+    }
+
+    /**
+     * Reads a value, keeping it only if asked to. When an unquoted value is ended by '&gt;', token is left holding it.
+     */
+    private String readAttributeValue(boolean keep) throws IOException {
+        StringBuilder value = keep ? new StringBuilder() : null;
+        int c = read();
+        while (isSpace(c)) {
+            c = read();
+        }
+        token.setLength(0);
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            c = read();
+            while (c >= 0 && c != quote) {
+                if (keep) {
+                    value.append((char) c);
+                }
+                c = read();
+            }
+        } else {
+            while (c >= 0 && !isSpace(c) && c != '>') {
+                if (keep) {
+                    value.append((char) c);
+                }
+                c = read();
+            }
+            if (c == '>') {
+                token.append('>');
+            }
+        }
+        return keep ? value.toString() : null;
+    }
+
+    /**
+     * Reads contents of script, style etc. up to the matching end tag.
+     */
+    private void rawText(String name, boolean isText) throws IOException {
+        int c = read();
+        while (c >= 0) {
+            if (c == '<' && peek() == '/') {
+                read();
+                token.setLength(0);
+                int n = peek();
+                while (token.length() < name.length() && isLetter(n)) {
+                    token.append(Character.toLowerCase((char) read()));
+                    n = peek();
+                }
+                if (token.toString().equals(name) && (isSpace(n) || n == '>' || n == '/')) {
+                    flushText(name.equals("title") || name.equals("textarea"));
+                    skipTo('>');
+                    return;
+                }
+                if (isText && numOfOpenMatches > 0) {
+                    text.append("</").append(token);
+                }
+            } else if (isText && numOfOpenMatches > 0) {
+                text.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private void flushText(boolean decode) {
+        if (text.length() == 0) {
+            return;
+        }
+        String t = text.toString();
+        text.setLength(0);
+        if (decode && t.indexOf('&') >= 0) {
+            t = Parser.unescapeEntities(t, false);
+        }
+        for (int m = 0; m < numOfOpenMatches; m++) {
+            appendNormalised(openMatches[m], t);
+        }
+    }
+
+    private static void appendNormalised(StringBuilder accum, String t) {
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (isSpace(c)) {
+                if (accum.length() == 0 || accum.charAt(accum.length() - 1) != ' ') {
+                    accum.append(' ');
+                }
+            } else {
+                accum.append(c);
+            }
+        }
+    }
+
+    // ---- tree building ----
+
+    private void startElement(String name, String classAttr, boolean selfClosing) throws IOException {
+        if (name.equals("html")) {
+            if (depth == 0) {
+                push(name, classAttr);
+            }
+            return;
+        }
+        if (depth == 0) {
+            push("html", null);
+        }
+        if (name.equals("head")) {
+            if (depth == 1) {
+                push(name, classAttr);
+            }
+            return;
+        }
+        if (name.equals("body")) {
+            if (find("body", 0) < 0) {
+                popTo(1);
+                push(name, classAttr);
+            }
+            return;
+        }
+        boolean inHead = tags[depth - 1].equals("head");
+        if (depth == 1 || (inHead && !HEAD_TAGS.contains(name))) {
+            if (HEAD_TAGS.contains(name) && find("body", 0) < 0) {
+                if (!inHead) {
+                    push("head", null);
+                }
+            } else {
+                popTo(1);
+                push("body", null);
+            }
+        }
+
+        if (CLOSES_P_TAGS.contains(name)) {
+            closeList(name);
+            int p = findInScope("p", BUTTON_SCOPE_TAGS);
+            if (p >= 0) {
+                popTo(p);
+            }
+            if (HEADING_TAGS.contains(name) && HEADING_TAGS.contains(tags[depth - 1])) {
+                pop();
+            }
+        } else if (name.equals("td") || name.equals("th")) {
+            int cell = findCellOrTable();
+            if (cell >= 0 && !tags[cell].equals("table") && !tags[cell].equals("tr")) {
+                popTo(cell);
+            }
+            if (tags[depth - 1].equals("table")) {
+                push("tbody", null);
+            }
+            if (TABLE_SECTION_TAGS.contains(tags[depth - 1])) {
+                push("tr", null);
+            }
+        } else if (name.equals("tr")) {
+            int row = findRowOrTable();
+            if (row >= 0 && tags[row].equals("tr")) {
+                popTo(row);
+            }
+            if (tags[depth - 1].equals("table")) {
+                push("tbody", null);
+            }
+        } else if (TABLE_SECTION_TAGS.contains(name)) {
+            int table = find("table", 0);
+            if (table >= 0) {
+                popTo(table + 1);
+            }
+        } else if (name.equals("option") && tags[depth - 1].equals("option")) {
+            pop();
+        }
+
+        push(name, classAttr);
+        if (selfClosing || VOID_TAGS.contains(name)) {
+            pop();
+        } else if (DATA_TAGS.contains(name) || RAW_TEXT_TAGS.contains(name)) {
+            rawText(name, RAW_TEXT_TAGS.contains(name));
+            pop();
+        }
+    }
+
+    private void endTag(String name) throws IOException {
+        if (depth == 0 || name.equals("html") || name.equals("body")) {
+            return;
+        }
+        if (name.equals("head")) {
+            if (tags[depth - 1].equals("head")) {
+                pop();
+            }
+            return;
+        }
+        if (name.equals("br")) {
+            startElement(name, null, true);
+            return;
+        }
+        if (name.equals("p") && findInScope("p", BUTTON_SCOPE_TAGS) < 0) {
+            startElement(name, null, true);
+            return;
+        }
+        if (HEADING_TAGS.contains(name)) {
+            for (int i = depth - 1; i > 0; i--) {
+                if (HEADING_TAGS.contains(tags[i])) {
+                    popTo(i);
+                    return;
+                }
+            }
+            return;
+        }
+        if (SPECIAL_TAGS.contains(name) || FORMATTING_TAGS.contains(name)) {
+            int i = find(name, 1);
+            if (i >= 0) {
+                popTo(i);
+            }
+            return;
+        }
+        for (int i = depth - 1; i > 0; i--) {
+            if (tags[i].equals(name)) {
+                popTo(i);
+                return;
+            }
+            if (SPECIAL_TAGS.contains(tags[i])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A new list item closes the open one of its kind.
+     */
+    private void closeList(String name) {
+        boolean isItem = name.equals("li");
+        boolean isDef = name.equals("dd") || name.equals("dt");
+        if (!isItem && !isDef) {
+            return;
+        }
+        for (int i = depth - 1; i > 0; i--) {
+            String t = tags[i];
+            if ((isItem && t.equals("li")) || (isDef && (t.equals("dd") || t.equals("dt")))) {
+                popTo(i);
+                return;
+            }
+            if (SPECIAL_TAGS.contains(t) && !t.equals("address") && !t.equals("div") && !t.equals("p")) {
+                return;
+            }
+        }
+    }
+
+    private int find(String name, int from) {
+        for (int i = depth - 1; i >= from; i--) {
+            if (tags[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findInScope(String name, Set<String> scope) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (tags[i].equals(name)) {
+                return i;
+            }
+            if (scope.contains(tags[i])) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int findCellOrTable() {
+        for (int i = depth - 1; i >= 0; i--) {
+            String t = tags[i];
+            if (t.equals("td") || t.equals("th") || t.equals("tr") || t.equals("table")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findRowOrTable() {
+        for (int i = depth - 1; i >= 0; i--) {
+            String t = tags[i];
+            if (t.equals("tr") || t.equals("table")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void push(String name, String classAttr) {
+        if (depth == tags.length) {
+            tags = Arrays.copyOf(tags, depth * 2);
+            classes = Arrays.copyOf(classes, depth * 2);
+        }
+        if (BLOCK_TAGS.contains(name) || name.equals("br")) {
+            for (int m = 0; m < numOfOpenMatches; m++) {
+                StringBuilder accum = openMatches[m];
+                if (accum.length() > 0 && accum.charAt(accum.length() - 1) != ' ') {
+                    accum.append(' ');
+                }
+            }
+        }
+        tags[depth] = name;
+        classes[depth] = classAttr;
+        depth++;
+
+        int top = depth - 1;
+        if (outlet.isMainHeadline(tags, classes, top)) {
+            if (numOfOpenMatches == openMatches.length) {
+                openMatches = Arrays.copyOf(openMatches, numOfOpenMatches * 2);
+                openMatchDepths = Arrays.copyOf(openMatchDepths, numOfOpenMatches * 2);
+            }
+            StringBuilder accum = new StringBuilder();
+            matches.add(accum);
+            openMatches[numOfOpenMatches] = accum;
+            openMatchDepths[numOfOpenMatches] = top;
+            numOfOpenMatches++;
+        }
+    }
+
+    private void pop() {
+        depth--;
+        if (numOfOpenMatches > 0 && openMatchDepths[numOfOpenMatches - 1] == depth) {
+            numOfOpenMatches--;
+            openMatches[numOfOpenMatches] = null;
+        }
+    }
+
+    /**
+     * Pops all open elements down to and including the one at the given stack index.
+     */
+    private void popTo(int index) {
+        while (depth > index) {
+            pop();
+        }
+    }
+
+    private static Set<String> tagSet(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+}
@@ -0,0 +1,63 @@
+package media_analysis.mining;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import media_analysis.Outlet;
+
+/**
+ * Reads pages straight out of the hts-cache/new.zip that HTTrack keeps in each snapshot dir, so that loose html files
+ * need not be kept on disk. Entries are looked up by name in the zip's central directory, which {@link ZipFile} maps
+ * into memory rather than scanning the archive.
+ * @author yuvalp
+ *
+ */
+public class HtsCachePages {
+
+    public static final String CACHE_FILE = "hts-cache/new.zip";
+    private static final String INDEX_FILE = "index.html";
+
+    /**
+     * @param snapshotDir dir of a single outlet and date
+     * @return the page's contents, closing the archive when closed
+     * @throws FileNotFoundException if there is no cache or it does not contain the page
+     */
+    public static InputStream open(File snapshotDir, Outlet o) throws IOException {
+        File cache = new File(snapshotDir, CACHE_FILE);
+        if (!cache.isFile()) {
+            throw new FileNotFoundException(cache.getPath());
+        }
+        final ZipFile zip = new ZipFile(cache);
+        ZipEntry entry = zip.getEntry(entryName(o));
+        if (entry == null) {
+            zip.close();
+            throw new FileNotFoundException(entryName(o) + " in " + cache.getPath());
+        }
+        return new FilterInputStream(zip.getInputStream(entry)) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    zip.close();
+                }
+            }
+
+        };
+    }
+
+    /**
+     * HTTrack names entries by the page's original URL, and saves directory URLs locally as index.html.
+     */
+    public static String entryName(Outlet o) {
+        String file = o.indexFile();
+        return "http://" + o.domain() + (file.equals(INDEX_FILE) ? "" : file);
+    }
+
+}
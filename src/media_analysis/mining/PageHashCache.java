@@ -0,0 +1,90 @@
+package media_analysis.mining;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import media_analysis.Outlet;
+import media_analysis.utils.Metrics;
+
+/**
+ * Remembers the digest of each outlet's last parsed page along with the headline found in it, so that an unchanged
+ * page in the next snapshot needs no parsing. Thread-safe.
+ * @author yuvalp
+ *
+ */
+public class PageHashCache {
+
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    private final byte[][] lastDigests = new byte[Outlet.values().length][];
+    private final String[] lastHeadlines = new String[Outlet.values().length];
+    private final int[] hits = new int[Outlet.values().length];
+    private final int[] misses = new int[Outlet.values().length];
+
+    public PageHashCache() {
+        for (final Outlet o : Outlet.values()) {
+            String labels = Metrics.labels("outlet", o.name());
+            Metrics.gauge("page_hash_hits", labels, new Metrics.Gauge() {
+
+                @Override
+                public double value() {
+                    return hits(o);
+                }
+
+            });
+            Metrics.gauge("page_hash_misses", labels, new Metrics.Gauge() {
+
+                @Override
+                public double value() {
+                    return misses(o);
+                }
+
+            });
+        }
+    }
+
+    public static byte[] digest(byte[] page) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(page);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", e);
+        }
+    }
+
+    /**
+     * @return headline of the outlet's last page if it had the same digest, null otherwise
+     */
+    public synchronized String get(Outlet o, byte[] digest) {
+        int i = o.ordinal();
+        if (Arrays.equals(lastDigests[i], digest)) {
+            hits[i]++;
+            return lastHeadlines[i];
+        }
+        misses[i]++;
+        return null;
+    }
+
+    public synchronized void put(Outlet o, byte[] digest, String headline) {
+        int i = o.ordinal();
+        lastDigests[i] = digest;
+        lastHeadlines[i] = headline;
+    }
+
+    public synchronized int hits(Outlet o) {
+        return hits[o.ordinal()];
+    }
+
+    public synchronized int misses(Outlet o) {
+        return misses[o.ordinal()];
+    }
+
+    public static String header() {
+        return "unchanged pages" + "\t" + "parsed pages";
+    }
+
+    public synchronized String toString(Outlet o) {
+        return hits[o.ordinal()] + "\t" + misses[o.ordinal()];
+    }
+
+}
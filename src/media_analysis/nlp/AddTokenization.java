@@ -2,18 +2,37 @@ package media_analysis.nlp;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import media_analysis.Outlet;
 import media_analysis.utils.Consts;
+import media_analysis.utils.CountingInputStream;
+import media_analysis.utils.LatencyHistogram;
+import media_analysis.utils.MappedStringTable;
+import media_analysis.utils.Metrics;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.hebrew.MorphAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.apache.lucene.util.Version;
 
 /**
  * Adds hspell's tokenization as new column in output from {@link media_analysis.mining.ExtractTitlesFromHtml}
@@ -22,39 +41,62 @@ import org.apache.lucene.util.Version;
  */
 public class AddTokenization extends Consts {
 
-    public static void main(String[] args) throws IOException, ClassNotFoundException {
-        
+    private static final int BATCH_SIZE = 1000;
+    /** Number of batches read ahead of the writer, per worker thread */
+    private static final int BATCHES_AHEAD_PER_THREAD = 2;
+
+    private static final String STAGE = "tokenize";
+    private static final AtomicLong linesMetric = Metrics.items(STAGE);
+    private static final AtomicLong badLinesMetric = Metrics.failures(STAGE, "", "bad-line");
+    private static final AtomicLong bytesReadMetric = Metrics.counter("bytes_read_total", Metrics.labels("stage",
+                    STAGE));
+    /** By outlet name */
+    private static final Map<String, LatencyHistogram> analysisMetrics = new HashMap<>();
+    static {
+        for (Outlet o : Outlet.values()) {
+            analysisMetrics.put(o.name(), Metrics.histogram("analysis_seconds", Metrics.labels("outlet", o.name())));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
         if (args.length < 2) {
-            System.out.println("Usage: AddTokenization <in-location> <out-location>");
+            System.out.println("Usage: AddTokenization <in-location> <out-location> [num-of-threads] "
+                            + "[lemma-cache-location] [hspell-snapshot-location]");
             return;
         }
-        
-        Analyzer an = new MorphAnalyzer(Version.LUCENE_4_9, "");
+
+        Metrics.startExport();
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        LemmaCache cache = null;
+        File cacheFile = null;
+        if (args.length > 3 && !args[3].isEmpty()) {
+            cache = new LemmaCache(LemmaCache.DEFAULT_CAPACITY);
+            cacheFile = new File(args[3]);
+            cache.load(cacheFile);
+        }
+        MappedStringTable snapshot = args.length > 4 ? new MappedStringTable(new File(args[4])) : null;
+        if (threads > 1) {
+            addTokenizationParallel(args[0], args[1], threads, snapshot, cache);
+            finishCache(cache, cacheFile);
+            Metrics.finish();
+            System.out.println("Done!");
+            return;
+        }
+
+        TokenLemmatizer lemmatizer = new TokenLemmatizer(snapshot, cache);
 
         FileWriter out = new FileWriter(new File(args[1]));
-        BufferedReader fr = new BufferedReader(new FileReader(args[0]));
+        BufferedReader fr = openInput(args[0]);
         String l = fr.readLine();
-        TokenStream ts = null;
         int i = 1;
         while (l != null) {
-            String[] cols = l.split("\\t");
-            // time changed \t outlet \t epochs survived \t headline
-            if (cols.length != 4 || cols[3].isEmpty()) {
+            String tokenized = tokenizeLine(lemmatizer, l);
+            l = fr.readLine();
+            if (tokenized == null) {
                 continue;
             }
-            ts = an.tokenStream("", new StringReader(cols[3]));
-            ts.reset();
-            StringBuilder sb = new StringBuilder();
-            while (ts.incrementToken()) {
-                String term = ts.getAttribute(CharTermAttribute.class).toString();
-                int posIncrement = ts.getAttribute(PositionIncrementAttribute.class).getPositionIncrement();
-                if (posIncrement > 0) {
-                    sb.append(" ").append(term);
-                }
-            }
-            out.append(l + "\t" + sb.toString().trim() + "\n");
-            l = fr.readLine();
-            ts.close();
+            out.append(tokenized);
             if (++i % 1000 == 0) {
                 System.out.println("Printed " + i);
                 out.flush();
@@ -62,9 +104,156 @@ public class AddTokenization extends Consts {
         }
         out.flush();
         out.close();
-        an.close();
+        lemmatizer.close();
         fr.close();
+        finishCache(cache, cacheFile);
+        Metrics.finish();
         System.out.println("Done!");
     }
 
+    /**
+     * @return reader of the file in the default charset, counting its bytes
+     */
+    private static BufferedReader openInput(String inLocation) throws IOException {
+        return new BufferedReader(new InputStreamReader(new CountingInputStream(new FileInputStream(inLocation),
+                        bytesReadMetric)));
+    }
+
+    private static void finishCache(LemmaCache cache, File cacheFile) throws IOException {
+        if (cache != null) {
+            System.out.println(cache);
+            cache.save(cacheFile);
+        }
+    }
+
+    /**
+     * @return the line with its headline's tokenization appended, or null if it is not a valid headline line
+     */
+    public static String tokenizeLine(TokenLemmatizer lemmatizer, String l) throws IOException {
+        String[] cols = l.split("\\t");
+        linesMetric.incrementAndGet();
+        // time changed \t outlet \t epochs survived \t headline
+        if (cols.length != 4 || cols[3].isEmpty()) {
+            badLinesMetric.incrementAndGet();
+            return null;
+        }
+        long start = System.nanoTime();
+        String lemmatized = lemmatizer.lemmatize(cols[3]);
+        LatencyHistogram analysis = analysisMetrics.get(cols[1]);
+        if (analysis != null) {
+            analysis.recordSince(start);
+        }
+        return l + "\t" + lemmatized + "\n";
+    }
+
+    /**
+     * @return the first analysis of each token in the text, space-delimited
+     */
+    public static String tokenize(Analyzer an, String text) throws IOException {
+        TokenStream ts = an.tokenStream("", new StringReader(text));
+        ts.reset();
+        StringBuilder sb = new StringBuilder();
+        while (ts.incrementToken()) {
+            String term = ts.getAttribute(CharTermAttribute.class).toString();
+            int posIncrement = ts.getAttribute(PositionIncrementAttribute.class).getPositionIncrement();
+            if (posIncrement > 0) {
+                sb.append(" ").append(term);
+            }
+        }
+        ts.close();
+        return sb.toString().trim();
+    }
+
+    /**
+     * Tokenizes batches of lines on a thread pool, each worker with a lemmatizer (and analyzer) of its own, writing
+     * batches in input order.
+     * @param snapshot shared by all workers, may be null
+     * @param cache shared by all workers, may be null
+     */
+    public static void addTokenizationParallel(String inLocation, String outLocation, int threads,
+                    MappedStringTable snapshot, LemmaCache cache) throws IOException {
+        Writer out = new FileWriter(new File(outLocation));
+        try {
+            addTokenizationParallel(openInput(inLocation), out, threads, snapshot, cache);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Same as {@link #addTokenizationParallel(String, String, int, MappedStringTable, LemmaCache)}, between any
+     * reader and writer, e.g. pipes from and to the neighbouring stages. Closes the reader either way, but the writer
+     * only when done, so that a failure does not look like the end of the text to whoever reads it.
+     */
+    public static void addTokenizationParallel(BufferedReader fr, Writer out, int threads,
+                    final MappedStringTable snapshot, final LemmaCache cache) throws IOException {
+        final List<TokenLemmatizer> lemmatizers = Collections.synchronizedList(new ArrayList<TokenLemmatizer>());
+        final ThreadLocal<TokenLemmatizer> workerLemmatizer = new ThreadLocal<TokenLemmatizer>() {
+
+            @Override
+            protected TokenLemmatizer initialValue() {
+                TokenLemmatizer lemmatizer = new TokenLemmatizer(snapshot, cache);
+                lemmatizers.add(lemmatizer);
+                return lemmatizer;
+            }
+
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Queue<Future<String>> pending = new ArrayDeque<>();
+            Queue<Integer> pendingSizes = new ArrayDeque<>();
+            int i = 0;
+            String l = fr.readLine();
+            while (l != null || !pending.isEmpty()) {
+                while (l != null && pending.size() < threads * BATCHES_AHEAD_PER_THREAD) {
+                    final List<String> batch = new ArrayList<>(BATCH_SIZE);
+                    while (l != null && batch.size() < BATCH_SIZE) {
+                        batch.add(l);
+                        l = fr.readLine();
+                    }
+                    pending.add(pool.submit(new Callable<String>() {
+
+                        @Override
+                        public String call() throws IOException {
+                            TokenLemmatizer lemmatizer = workerLemmatizer.get();
+                            StringBuilder sb = new StringBuilder();
+                            for (String line : batch) {
+                                String tokenized = tokenizeLine(lemmatizer, line);
+                                if (tokenized != null) {
+                                    sb.append(tokenized);
+                                }
+                            }
+                            return sb.toString();
+                        }
+
+                    }));
+                    pendingSizes.add(batch.size());
+                }
+                out.append(awaitBatch(pending.remove()));
+                i += pendingSizes.remove();
+                System.out.println("Printed " + i);
+                out.flush();
+            }
+            out.close();
+        } finally {
+            pool.shutdownNow();
+            fr.close();
+            for (TokenLemmatizer lemmatizer : lemmatizers) {
+                lemmatizer.close();
+            }
+        }
+    }
+
+    private static String awaitBatch(Future<String> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for tokenization", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Tokenization failed", e.getCause());
+        }
+    }
+
 }
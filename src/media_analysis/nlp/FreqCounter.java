@@ -6,148 +6,340 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import media_analysis.Outlet;
+import media_analysis.corpus.HeadlineStore;
+import media_analysis.utils.CountingInputStream;
+import media_analysis.utils.Metrics;
+import media_analysis.utils.StringIntCounter;
 
 import com.sun.org.apache.xerces.internal.impl.io.UTF8Reader;
 
 public class FreqCounter {
 
-    // TODO sort
-    public static void main(String[] args) throws IOException {
-        
-        int threshold = 5;
+    private static final int DEFAULT_THRESHOLD = 5;
+    private static final int CHUNK_SIZE = 10000;
+    /** Number of chunks read ahead of counting, per worker thread */
+    private static final int CHUNKS_AHEAD_PER_THREAD = 2;
 
-        BufferedReader in = new BufferedReader(new UTF8Reader(new FileInputStream(new File(args[0]))));
-        String line = in.readLine();
-        Map<Outlet, Map<String, Integer>> wordsFreqs = new HashMap<>();
-        Map<Outlet, Map<String, Integer>> lemmataFreqs = new HashMap<>();
-        Map<String, Integer> allWordFreqs = new HashMap<>();
-        Map<String, Integer> allLemmataFreqs = new HashMap<>();
-        for (Outlet o : Outlet.values()) {
-            wordsFreqs.put(o, new HashMap<String, Integer>());
-            lemmataFreqs.put(o, new HashMap<String, Integer>());
-        }
+    private static final String STAGE = "count";
+    private static final AtomicLong linesMetric = Metrics.items(STAGE);
+    private static final AtomicLong badLinesMetric = Metrics.failures(STAGE, "", "bad-line");
+
+    /**
+     * Word and lemma counts per outlet and overall, for some of the input lines.
+     */
+    static class Shard {
+
+        final StringIntCounter[] wordsFreqs = new StringIntCounter[Outlet.values().length];
+        final StringIntCounter[] lemmataFreqs = new StringIntCounter[Outlet.values().length];
+        final StringIntCounter allWordFreqs = new StringIntCounter();
+        final StringIntCounter allLemmataFreqs = new StringIntCounter();
         int lines = 0;
-        while (line != null) {
+
+        Shard() {
+            for (Outlet o : Outlet.values()) {
+                wordsFreqs[o.ordinal()] = new StringIntCounter();
+                lemmataFreqs[o.ordinal()] = new StringIntCounter();
+            }
+        }
+
+        /**
+         * Same tokens as line.split("\\t") and column.split(" "), without the copies.
+         * @return false if the line does not have all columns
+         */
+        boolean count(String line) {
             // time-changed \t outlet \t epochs \t raw \t lemmatized
-            String[] columns = line.split("\\t");
-            if (columns.length != 5) {
-                continue;
+            int[] tabs = new int[4];
+            int t = -1;
+            for (int c = 0; c < 4; c++) {
+                t = line.indexOf('\t', t + 1);
+                if (t < 0) {
+                    return false;
+                }
+                tabs[c] = t;
+            }
+            int lemEnd = line.indexOf('\t', tabs[3] + 1);
+            if (lemEnd < 0) {
+                lemEnd = line.length();
+            } else {
+                // split() drops trailing empty columns only
+                for (int i = lemEnd; i < line.length(); i++) {
+                    if (line.charAt(i) != '\t') {
+                        return false;
+                    }
+                }
             }
-            Outlet o = Outlet.valueOf(columns[1]);            
-            Map<String, Integer> wHisto = wordsFreqs.get(o);
-            Map<String, Integer> lHisto = lemmataFreqs.get(o);
-            for (String w : columns[3].split(" ")) {
-                increment(wHisto, w);
-                increment(allWordFreqs, w);
+            if (lemEnd == tabs[3] + 1) {
+                return false;
+            }
+            Outlet o = outlet(line, tabs[0] + 1, tabs[1]);
+            countTokens(line, tabs[2] + 1, tabs[3], wordsFreqs[o.ordinal()], allWordFreqs);
+            countTokens(line, tabs[3] + 1, lemEnd, lemmataFreqs[o.ordinal()], allLemmataFreqs);
+            lines++;
+            return true;
+        }
+
+        void addAll(Shard other) {
+            for (Outlet o : Outlet.values()) {
+                wordsFreqs[o.ordinal()].addAll(other.wordsFreqs[o.ordinal()]);
+                lemmataFreqs[o.ordinal()].addAll(other.lemmataFreqs[o.ordinal()]);
             }
-            for (String l : columns[4].split(" ")) {
-                increment(lHisto, l);
-                increment(allLemmataFreqs, l);
+            allWordFreqs.addAll(other.allWordFreqs);
+            allLemmataFreqs.addAll(other.allLemmataFreqs);
+            lines += other.lines;
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.out.println("Usage: FreqCounter <in-location> <out-base> [num-of-threads] [threshold] [top-k]");
+            return;
+        }
+
+        Metrics.startExport();
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threshold = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_THRESHOLD;
+        int topK = args.length > 4 ? Integer.parseInt(args[4]) : -1;
+
+        Shard counts;
+        if (HeadlineStore.exists(args[0])) {
+            counts = count(new HeadlineStore(args[0]));
+        } else {
+            AtomicLong bytesRead = Metrics.counter("bytes_read_total", Metrics.labels("stage", STAGE));
+            BufferedReader in = new BufferedReader(new UTF8Reader(new CountingInputStream(new FileInputStream(new File(
+                            args[0])), bytesRead)));
+            counts = threads > 1 ? countParallel(in, threads) : count(in);
+            in.close();
+        }
+        System.out.println("Finished analysis of " + counts.lines + " headlines");
+
+        String outBase = args[1] + "-" + threshold + (topK < 0 ? "" : "-top" + topK);
+        writeHistograms(outBase + "-words.txt", counts.wordsFreqs, counts.allWordFreqs, threshold, topK);
+        writeHistograms(outBase + "-lemmata.txt", counts.lemmataFreqs, counts.allLemmataFreqs, threshold, topK);
+        Metrics.finish();
+        System.out.println("Done!");
+    }
+
+    private static Shard count(BufferedReader in) throws IOException {
+        Shard counts = new Shard();
+        String line = in.readLine();
+        while (line != null) {
+            linesMetric.incrementAndGet();
+            if (!counts.count(line)) {
+                badLinesMetric.incrementAndGet();
+            } else if (counts.lines % 1000 == 0) {
+                System.out.println("Analyzed " + counts.lines + " headlines");
             }
             line = in.readLine();
-            if (++lines % 1000 == 0) {
-                System.out.println("Analyzed " + lines + " headlines");
+        }
+        return counts;
+    }
+
+    /**
+     * Counts a converted corpus by term ID, with the same tokens as the text file would give.
+     */
+    private static Shard count(HeadlineStore store) {
+        int numOfOutlets = Outlet.values().length;
+        int emptyId = store.termId("");
+        int[][] wordCounts = new int[numOfOutlets + 1][store.numOfTerms()];
+        int[][] lemmaCounts = new int[numOfOutlets + 1][store.numOfTerms()];
+        Shard counts = new Shard();
+        for (int h = 0; h < store.size(); h++) {
+            int o = store.outletOrdinal(h);
+            int words = countedTokens(store, h, store.numOfRawTokens(h), false, emptyId);
+            for (int t = 0; t < words; t++) {
+                int id = store.rawToken(h, t);
+                wordCounts[o][id]++;
+                wordCounts[numOfOutlets][id]++;
+            }
+            int lemmata = countedTokens(store, h, store.numOfLemmata(h), true, emptyId);
+            for (int t = 0; t < lemmata; t++) {
+                int id = store.lemma(h, t);
+                lemmaCounts[o][id]++;
+                lemmaCounts[numOfOutlets][id]++;
+            }
+            linesMetric.incrementAndGet();
+            if (++counts.lines % 100000 == 0) {
+                System.out.println("Analyzed " + counts.lines + " headlines");
             }
         }
-        System.out.println("Finished analysis of " + lines + " headlines");
-        in.close();
-        
-        String outBase = args[1] + "-" + threshold;
-        BufferedWriter out = new BufferedWriter(new FileWriter(outBase + "-words.txt"));
-        for (Outlet o : Outlet.values()) {
-            int totalCount = 0;
-            out.append(o + ":"); out.newLine();
-            for (Entry<String, Integer> kv : sortedEntries(wordsFreqs.get(o))) {
-                int ct = kv.getValue();
-                totalCount += ct;
-                if (ct >= threshold) {
-                    out.append(kv.getKey() + "\t" + ct); out.newLine();                    
+        for (int o = 0; o <= numOfOutlets; o++) {
+            StringIntCounter wordsFreqs = o < numOfOutlets ? counts.wordsFreqs[o] : counts.allWordFreqs;
+            StringIntCounter lemmataFreqs = o < numOfOutlets ? counts.lemmataFreqs[o] : counts.allLemmataFreqs;
+            for (int id = 0; id < store.numOfTerms(); id++) {
+                String term = store.term(id);
+                if (wordCounts[o][id] > 0) {
+                    wordsFreqs.add(term, 0, term.length(), wordCounts[o][id]);
+                }
+                if (lemmaCounts[o][id] > 0) {
+                    lemmataFreqs.add(term, 0, term.length(), lemmaCounts[o][id]);
                 }
             }
-            out.append("TOTAL\t" + totalCount); out.newLine();
-            out.append("--------"); out.newLine();
-            out.newLine();
-            out.flush();
         }
-        out.append("ALL:"); out.newLine();
-        int totalTotalCount = 0;
-        for (Entry<String, Integer> kv : sortedEntries(allWordFreqs)) {
-            int ct = kv.getValue();
-            totalTotalCount += ct;
-            if (ct >= threshold) {
-                out.append(kv.getKey() + "\t" + ct); out.newLine();                    
+        return counts;
+    }
+
+    /**
+     * @return how many of the headline's leading tokens split(" ") would return: trailing empty ones are dropped,
+     *         unless the whole column is empty
+     */
+    private static int countedTokens(HeadlineStore store, int h, int numOfTokens, boolean lemmata, int emptyId) {
+        int n = numOfTokens;
+        while (n > 0 && (lemmata ? store.lemma(h, n - 1) : store.rawToken(h, n - 1)) == emptyId) {
+            n--;
+        }
+        return n == 0 && numOfTokens == 1 ? 1 : n;
+    }
+
+    /**
+     * Counts chunks of lines on a thread pool, each worker into a shard of its own, and merges the shards at the end.
+     */
+    private static Shard countParallel(BufferedReader in, int threads) throws IOException {
+        final List<Shard> shards = Collections.synchronizedList(new ArrayList<Shard>());
+        final ThreadLocal<Shard> workerShard = new ThreadLocal<Shard>() {
+
+            @Override
+            protected Shard initialValue() {
+                Shard shard = new Shard();
+                shards.add(shard);
+                return shard;
+            }
+
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Queue<Future<Integer>> pending = new ArrayDeque<>();
+            int lines = 0;
+            String line = in.readLine();
+            while (line != null || !pending.isEmpty()) {
+                while (line != null && pending.size() < threads * CHUNKS_AHEAD_PER_THREAD) {
+                    final List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+                    while (line != null && chunk.size() < CHUNK_SIZE) {
+                        chunk.add(line);
+                        line = in.readLine();
+                    }
+                    pending.add(pool.submit(new Callable<Integer>() {
+
+                        @Override
+                        public Integer call() {
+                            Shard shard = workerShard.get();
+                            int counted = 0;
+                            for (String l : chunk) {
+                                if (shard.count(l)) {
+                                    counted++;
+                                }
+                            }
+                            linesMetric.addAndGet(chunk.size());
+                            badLinesMetric.addAndGet(chunk.size() - counted);
+                            return counted;
+                        }
+
+                    }));
+                }
+                lines += awaitChunk(pending.remove());
+                System.out.println("Analyzed " + lines + " headlines");
             }
+        } finally {
+            pool.shutdownNow();
         }
-        out.append("TOTAL\t" + totalTotalCount); out.newLine();
-        out.append("--------"); out.newLine();
-        
-        out.flush();
-        out.close();
-        
-        out = new BufferedWriter(new FileWriter(outBase + "-lemmata.txt"));
+
+        Shard counts = new Shard();
+        for (Shard shard : shards) {
+            counts.addAll(shard);
+        }
+        return counts;
+    }
+
+    private static int awaitChunk(Future<Integer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Counting failed", e.getCause());
+        }
+    }
+
+    /**
+     * Writes each histogram's entries counted at least threshold times, up to topK of them (if not negative), by
+     * descending count, followed by its total count.
+     */
+    private static void writeHistograms(String fileName, StringIntCounter[] outletFreqs, StringIntCounter allFreqs,
+                    int threshold, int topK) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
         for (Outlet o : Outlet.values()) {
-            int totalCount = 0;
             out.append(o + ":"); out.newLine();
-            for (Entry<String, Integer> kv : sortedEntries(lemmataFreqs.get(o))) {
-                int ct = kv.getValue();
-                totalCount += ct;
-                if (ct >= threshold) {
-                    out.append(kv.getKey() + "\t" + ct); out.newLine();                    
-                }
-            }
-            out.append("TOTAL\t" + totalCount); out.newLine();
-            out.append("--------"); out.newLine();
+            writeHistogram(out, outletFreqs[o.ordinal()], threshold, topK);
             out.newLine();
             out.flush();
         }
         out.append("ALL:"); out.newLine();
-        totalTotalCount = 0;
-        for (Entry<String, Integer> kv : sortedEntries(allLemmataFreqs)) {
-            int ct = kv.getValue();
-            totalTotalCount += ct;
-            if (ct >= threshold) {
-                out.append(kv.getKey() + "\t" + ct); out.newLine();                    
-            }
-        }
-        out.append("TOTAL\t" + totalTotalCount); out.newLine();
-        out.append("--------"); out.newLine();
-        
+        writeHistogram(out, allFreqs, threshold, topK);
         out.flush();
         out.close();
-        System.out.println("Done!");
     }
 
-    public static List<Entry<String, Integer>> sortedEntries(Map<String, Integer> map) {
-        Set<Entry<String, Integer>> entries = map.entrySet();
-        ArrayList<Entry<String, Integer>> ret = new ArrayList<>(entries.size());
-        ret.addAll(entries);
-        Collections.sort(ret, new Comparator<Entry<String, Integer>>() {
+    private static void writeHistogram(BufferedWriter out, StringIntCounter freqs, int threshold, int topK)
+                    throws IOException {
+        for (int slot : freqs.topSlots(topK, threshold)) {
+            out.append(freqs.keyAt(slot) + "\t" + freqs.countAt(slot)); out.newLine();
+        }
+        out.append("TOTAL\t" + freqs.total()); out.newLine();
+        out.append("--------"); out.newLine();
+    }
 
-            @Override
-            public int compare(Entry<String, Integer> o1, Entry<String, Integer> o2) {
-                return Integer.compare(o2.getValue(), o1.getValue());
+    private static Outlet outlet(String line, int from, int to) {
+        for (Outlet o : Outlet.values()) {
+            String name = o.name();
+            if (name.length() == to - from && line.regionMatches(from, name, 0, name.length())) {
+                return o;
             }
-            
-        });
-        return ret;
+        }
+        throw new IllegalArgumentException("No outlet " + line.substring(from, to));
     }
 
-    public static void increment(Map<String, Integer> wHisto, String w) {
-        Integer curr = wHisto.get(w);
-        if (curr == null) {
-            wHisto.put(w, 1);
-        } else {
-            wHisto.put(w, curr + 1);
+    /**
+     * Counts space-delimited tokens of line.substring(from, to) the way split(" ") returns them: empty tokens between
+     * consecutive spaces included, trailing ones dropped.
+     */
+    private static void countTokens(String line, int from, int to, StringIntCounter histo, StringIntCounter all) {
+        int end = to;
+        while (end > from && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end == from) {
+            if (to == from) {
+                // "".split(" ") is [""]
+                histo.add(line, from, from, 1);
+                all.add(line, from, from, 1);
+            }
+            return;
+        }
+        int start = from;
+        while (start <= end) {
+            int space = line.indexOf(' ', start);
+            if (space < 0 || space > end) {
+                space = end;
+            }
+            histo.add(line, start, space, 1);
+            all.add(line, start, space, 1);
+            start = space + 1;
         }
     }
 
@@ -0,0 +1,59 @@
+package media_analysis.nlp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import media_analysis.utils.MappedStringTable;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.hebrew.MorphAnalyzer;
+import org.apache.lucene.util.Version;
+
+/**
+ * Compiles hspell's lemma choice for every token of a vocabulary into a memory-mapped {@link MappedStringTable}, from
+ * which {@link TokenLemmatizer} starts without loading the hspell dictionary at all.
+ * Vocabulary files are either frequency lists (token in first column) or output of {@link AddTokenization} or
+ * {@link media_analysis.mining.ExtractTitlesFromHtml} (headline in fourth column).
+ * @author yuvalp
+ *
+ */
+public class HspellSnapshot {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        if (args.length < 2) {
+            System.out.println("Usage: HspellSnapshot <out-location> <vocabulary-file> [<vocabulary-file> ...]");
+            return;
+        }
+
+        Analyzer an = new MorphAnalyzer(Version.LUCENE_4_9, "");
+        Map<String, String> lemmata = new HashMap<>();
+        for (int f = 1; f < args.length; f++) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[f]), "UTF8"));
+            String line = in.readLine();
+            while (line != null) {
+                String[] cols = line.split("\\t");
+                String text = cols.length >= 4 ? cols[3] : cols[0];
+                for (String token : text.split(" ")) {
+                    if (!token.isEmpty() && !lemmata.containsKey(token)) {
+                        lemmata.put(token, AddTokenization.tokenize(an, token));
+                        if (lemmata.size() % 10000 == 0) {
+                            System.out.println("Analyzed " + lemmata.size() + " tokens");
+                        }
+                    }
+                }
+                line = in.readLine();
+            }
+            in.close();
+        }
+        an.close();
+
+        MappedStringTable.writeStrings(new File(args[0]), lemmata);
+        System.out.println("Done! Wrote " + lemmata.size() + " tokens");
+    }
+
+}
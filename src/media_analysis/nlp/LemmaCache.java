@@ -0,0 +1,100 @@
+package media_analysis.nlp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Bounded, least-recently-used map from a surface token to the lemmata {@link AddTokenization} chose for it, so that
+ * repeated tokens skip morphological analysis. Relies on hspell analyzing each whitespace-delimited token
+ * independently of its neighbours. Thread-safe.
+ * @author yuvalp
+ *
+ */
+public class LemmaCache {
+
+    public static final int DEFAULT_CAPACITY = 200000;
+
+    private final Map<String, String> lemmata;
+    private long hits = 0;
+    private long misses = 0;
+
+    public LemmaCache(final int capacity) {
+        lemmata = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+
+        };
+    }
+
+    /**
+     * @return space-delimited lemmata, or null if the token is not cached
+     */
+    public synchronized String get(String token) {
+        String lem = lemmata.get(token);
+        if (lem == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return lem;
+    }
+
+    public synchronized void put(String token, String lem) {
+        lemmata.put(token, lem);
+    }
+
+    /**
+     * Loads entries saved by {@link #save(File)}, if the file exists.
+     */
+    public synchronized void load(File cacheFile) throws IOException {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF8"));
+        String line = in.readLine();
+        while (line != null) {
+            // token \t lemmata
+            String[] cols = line.split("\t", -1);
+            if (cols.length == 2) {
+                lemmata.put(cols[0], cols[1]);
+            }
+            line = in.readLine();
+        }
+        in.close();
+    }
+
+    /**
+     * Saves entries from least to most recently used, so that loading keeps the same order.
+     */
+    public synchronized void save(File cacheFile) throws IOException {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFile), "UTF8"));
+        for (Entry<String, String> kv : lemmata.entrySet()) {
+            out.append(kv.getKey() + "\t" + kv.getValue());
+            out.newLine();
+        }
+        out.flush();
+        out.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "lemma cache: " + lemmata.size() + " entries, " + hits + " hits, " + misses + " misses ("
+                        + (lookups == 0 ? 0 : 100 * hits / lookups) + "% hit rate)";
+    }
+
+}
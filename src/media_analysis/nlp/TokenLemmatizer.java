@@ -0,0 +1,108 @@
+package media_analysis.nlp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import media_analysis.utils.MappedStringTable;
+import media_analysis.utils.Metrics;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.hebrew.MorphAnalyzer;
+import org.apache.lucene.util.Version;
+
+/**
+ * Lemmatizes headlines the way {@link AddTokenization} does, looking each token up in a prebuilt
+ * {@link HspellSnapshot} and a {@link LemmaCache} before analyzing it. The hspell analyzer is only loaded once a token
+ * is found in neither. Not thread-safe, but the snapshot and cache may be shared.
+ * @author yuvalp
+ *
+ */
+public class TokenLemmatizer implements Closeable {
+
+    // where each token's lemmata came from, for hit rates of the snapshot and cache
+    private static final AtomicLong snapshotHits = Metrics.counter("lemma_lookups_total", Metrics.labels("source",
+                    "snapshot"));
+    private static final AtomicLong cacheHits = Metrics.counter("lemma_lookups_total", Metrics.labels("source",
+                    "cache"));
+    private static final AtomicLong analyzed = Metrics.counter("lemma_lookups_total", Metrics.labels("source",
+                    "analyzer"));
+
+    private final MappedStringTable snapshot;
+    private final LemmaCache cache;
+    private Analyzer analyzer = null;
+
+    /**
+     * @param iSnapshot may be null
+     * @param iCache may be null
+     */
+    public TokenLemmatizer(MappedStringTable iSnapshot, LemmaCache iCache) {
+        snapshot = iSnapshot;
+        cache = iCache;
+    }
+
+    /**
+     * @return space-delimited lemmata of the headline
+     */
+    public String lemmatize(String headline) throws IOException {
+        if (snapshot == null && cache == null) {
+            return AddTokenization.tokenize(analyzer(), headline);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String token : headline.split(" ")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            String lem = lemmatizeToken(token);
+            if (!lem.isEmpty()) {
+                sb.append(" ").append(lem);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private String lemmatizeToken(String token) throws IOException {
+        String lem = snapshot == null ? null : snapshot.getString(token);
+        if (lem != null) {
+            snapshotHits.incrementAndGet();
+            return lem;
+        }
+        lem = cache == null ? null : cache.get(token);
+        if (lem != null) {
+            cacheHits.incrementAndGet();
+            return lem;
+        }
+        analyzed.incrementAndGet();
+        lem = AddTokenization.tokenize(analyzer(), token);
+        if (cache != null) {
+            cache.put(token, lem);
+        }
+        return lem;
+    }
+
+    /**
+     * Loads the hspell analyzer now rather than on the first token that needs it.
+     */
+    public void preload() throws IOException {
+        analyzer();
+    }
+
+    private Analyzer analyzer() throws IOException {
+        if (analyzer == null) {
+            try {
+                analyzer = new MorphAnalyzer(Version.LUCENE_4_9, "");
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not load morphological analyzer", e);
+            }
+        }
+        return analyzer;
+    }
+
+    @Override
+    public void close() {
+        if (analyzer != null) {
+            analyzer.close();
+        }
+    }
+
+}
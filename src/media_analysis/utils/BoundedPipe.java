@@ -0,0 +1,227 @@
+package media_analysis.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a writer thread to a reader thread through a bounded queue of text chunks, so that a stage writing its
+ * output for the next one blocks once it is that far ahead. Unlike {@link java.io.PipedWriter}, text is handed over a
+ * chunk at a time, when the chunk fills up or the writer is flushed.
+ * Either side can end the pipe early: closing the reader makes further writes throw {@link PipeClosedException}, and
+ * {@link #fail(Throwable)} makes both sides throw.
+ * @author yuvalp
+ *
+ */
+public class BoundedPipe {
+
+    private static final char[] EOF = new char[0];
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<char[]> chunks;
+    private final int chunkSize;
+    private final Writer writer;
+    private final Reader reader;
+    private volatile boolean readerClosed = false;
+    private volatile Throwable failure = null;
+
+    /**
+     * Thrown at the writer once the reader has stopped reading, e.g. as it needs no more input.
+     */
+    public static class PipeClosedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public PipeClosedException() {
+            super("Pipe closed by reader");
+        }
+
+    }
+
+    /**
+     * @param capacity number of chunks the writer may be ahead by
+     * @param iChunkSize in chars
+     */
+    public BoundedPipe(int capacity, int iChunkSize) {
+        chunks = new ArrayBlockingQueue<>(capacity);
+        chunkSize = iChunkSize;
+        writer = new PipeWriter();
+        reader = new PipeReader();
+    }
+
+    /**
+     * @return the writing end, which signals the end of text when closed
+     */
+    public Writer writer() {
+        return writer;
+    }
+
+    /**
+     * @return the reading end, which stops the writer when closed
+     */
+    public Reader reader() {
+        return reader;
+    }
+
+    /**
+     * Aborts the pipe, e.g. when a stage on either side has failed.
+     */
+    public void fail(Throwable t) {
+        failure = t;
+        chunks.clear();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Pipe aborted", failure);
+        }
+    }
+
+    private void put(char[] chunk) throws IOException {
+        try {
+            while (!chunks.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+                if (readerClosed) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to pipe", e);
+        }
+        checkFailure();
+        if (readerClosed) {
+            chunks.clear();
+            throw new PipeClosedException();
+        }
+    }
+
+    private char[] take() throws IOException {
+        try {
+            char[] chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            while (chunk == null) {
+                checkFailure();
+                chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            checkFailure();
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading from pipe", e);
+        }
+    }
+
+    private class PipeWriter extends Writer {
+
+        private char[] buf = new char[chunkSize];
+        private int length = 0;
+        private boolean closed = false;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Writer closed");
+            }
+            while (len > 0) {
+                int n = Math.min(len, buf.length - length);
+                System.arraycopy(cbuf, off, buf, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == buf.length) {
+                    handOver();
+                }
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Writer closed");
+            }
+            while (len > 0) {
+                int n = Math.min(len, buf.length - length);
+                str.getChars(off, off + n, buf, length);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == buf.length) {
+                    handOver();
+                }
+            }
+        }
+
+        private void handOver() throws IOException {
+            char[] chunk;
+            if (length == buf.length) {
+                chunk = buf;
+                buf = new char[chunkSize];
+            } else {
+                chunk = Arrays.copyOf(buf, length);
+            }
+            length = 0;
+            put(chunk);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                handOver();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (length > 0) {
+                handOver();
+            }
+            put(EOF);
+        }
+
+    }
+
+    private class PipeReader extends Reader {
+
+        private char[] chunk = null;
+        private int pos = 0;
+        private boolean eof = false;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (readerClosed) {
+                throw new IOException("Reader closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (!eof && (chunk == null || pos == chunk.length)) {
+                chunk = take();
+                pos = 0;
+                eof = chunk == EOF;
+            }
+            if (eof) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, cbuf, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            chunks.clear();
+        }
+
+    }
+
+}
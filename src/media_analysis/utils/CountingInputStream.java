@@ -0,0 +1,47 @@
+package media_analysis.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds the number of bytes read through it to a counter, e.g. one of {@link Metrics}.
+ * @author yuvalp
+ *
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final AtomicLong bytes;
+
+    public CountingInputStream(InputStream in, AtomicLong iBytes) {
+        super(in);
+        bytes = iBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            bytes.incrementAndGet();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            bytes.addAndGet(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes.addAndGet(skipped);
+        return skipped;
+    }
+
+}
@@ -0,0 +1,115 @@
+package media_analysis.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in log-spaced buckets, four per doubling from a nanosecond up to about 18 minutes, so that
+ * quantiles are reported to within 19% of the true value at any scale. Recording is lock-free. Thread-safe.
+ * @author yuvalp
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int NUM_OF_BUCKETS = 40 * BUCKETS_PER_DOUBLING;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_OF_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Records the time since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos <= 1) {
+            return 0;
+        }
+        int b = (int) Math.ceil(Math.log(nanos) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        return Math.min(b, NUM_OF_BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sumNanos() {
+        return sumNanos.get();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return upper bound of the bucket holding the quantile (never more than the max), 0 if nothing was recorded
+     */
+    public long quantileNanos(double q) {
+        long total = 0;
+        long[] snapshot = new long[NUM_OF_BUCKETS];
+        for (int b = 0; b < NUM_OF_BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+            total += snapshot[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int b = 0; b < NUM_OF_BUCKETS; b++) {
+            seen += snapshot[b];
+            if (seen >= rank) {
+                return Math.min(upperBound(b), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Appends the histogram as a summary in the Prometheus text format, in seconds. The TYPE line is left to the
+     * caller, as a metric family may have several label sets.
+     * @param labels e.g. outlet="NRG", or empty
+     */
+    public void appendPrometheus(StringBuilder sb, String name, String labels) {
+        String sep = labels.isEmpty() ? "" : ",";
+        for (double q : QUANTILES) {
+            sb.append(name).append("{").append(labels).append(sep).append("quantile=\"").append(q).append("\"} ")
+                            .append(seconds(quantileNanos(q))).append("\n");
+        }
+        String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braced).append(" ").append(seconds(sumNanos())).append("\n");
+        sb.append(name).append("_count").append(braced).append(" ").append(count()).append("\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ENGLISH, "%.6f", nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "count %d, p50 %.3fms, p99 %.3fms, max %.3fms", count(),
+                        quantileNanos(0.5) / 1e6, quantileNanos(0.99) / 1e6, maxNanos() / 1e6);
+    }
+
+}
@@ -0,0 +1,159 @@
+package media_analysis.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.sun.org.apache.xerces.internal.impl.io.UTF8Reader;
+
+/**
+ * Word (or lemma) frequency table compiled into a {@link MappedStringTable} with 4-byte values, so that feature
+ * extraction runs look frequencies up in the page cache instead of loading the text table into the heap.
+ * The table is followed by an open-addressing index on {@link String#hashCode()}: slot count, then (hash, index + 1,
+ * frequency) per slot, 0 index marking an empty slot. Lookups probe it and compare a single key, with no allocation.
+ * @author yuvalp
+ *
+ */
+public class MappedFreqTable extends MappedStringTable {
+
+    public static final String SUFFIX = ".mft";
+    private static final int SLOT_BYTES = 12;
+
+    private final int slotsStart;
+    private final int mask;
+
+    public MappedFreqTable(File tableFile) throws IOException {
+        super(tableFile);
+        int numOfSlots = buf.getInt(end());
+        if (Integer.bitCount(numOfSlots) != 1) {
+            throw new IOException("Not a frequency table: " + tableFile);
+        }
+        slotsStart = end() + 4;
+        mask = numOfSlots - 1;
+    }
+
+    /**
+     * @return frequency of the key, or absent if it is not in the table
+     */
+    public int get(String key, int absent) {
+        return get(key, 0, key.length(), absent);
+    }
+
+    /**
+     * @return frequency of src.substring(from, to), or absent if it is not in the table
+     */
+    public int get(String src, int from, int to, int absent) {
+        // same as String.hashCode() of the substring
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + src.charAt(i);
+        }
+        for (int slot = mix(h) & mask;; slot = (slot + 1) & mask) {
+            int pos = slotsStart + SLOT_BYTES * slot;
+            int index = buf.getInt(pos + 4) - 1;
+            if (index < 0) {
+                return absent;
+            }
+            if (buf.getInt(pos) == h && keyEquals(index, src, from, to)) {
+                return buf.getInt(pos + 8);
+            }
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: MappedFreqTable <freq-file-location> [out-location]");
+            return;
+        }
+        File out = new File(args.length > 1 ? args[1] : args[0] + SUFFIX);
+        int entries = compile(new File(args[0]), out);
+        System.out.println("Done! Wrote " + entries + " frequencies to " + out);
+    }
+
+    /**
+     * Opens a compiled table, compiling it next to the text one (location + {@link #SUFFIX}) first if it is missing.
+     * A compiled table older than the text is not replaced here, since other processes may have it mapped; it has to
+     * be recompiled explicitly with {@link #main(String[])}.
+     */
+    public static MappedFreqTable open(String location) throws IOException {
+        if (location.endsWith(SUFFIX)) {
+            return new MappedFreqTable(new File(location));
+        }
+        File text = new File(location);
+        File compiled = new File(location + SUFFIX);
+        if (!compiled.isFile()) {
+            System.out.println("Compiling " + text + " to " + compiled);
+            compile(text, compiled);
+        } else if (compiled.lastModified() < text.lastModified()) {
+            throw new IOException(compiled + " is older than " + text + ", recompile it with MappedFreqTable "
+                            + text);
+        }
+        return new MappedFreqTable(compiled);
+    }
+
+    /**
+     * Compiles a text table with a word \t frequency line per entry; other lines are skipped, and later entries for
+     * the same word replace earlier ones. An existing table file is replaced, which fails on systems that lock files
+     * while mapped if a running process has it open.
+     * @return number of entries
+     */
+    public static int compile(File textTable, File tableFile) throws IOException {
+        Map<String, Integer> freqs = new HashMap<>();
+        BufferedReader in = new BufferedReader(new UTF8Reader(new FileInputStream(textTable)));
+        String line = in.readLine();
+        while (line != null) {
+            String[] wordFreq = line.split("\\t");
+            line = in.readLine();
+            if (wordFreq.length != 2) {
+                continue;
+            }
+            freqs.put(wordFreq[0], Integer.parseInt(wordFreq[1]));
+        }
+        in.close();
+
+        List<byte[][]> entries = new ArrayList<>(freqs.size());
+        for (Entry<String, Integer> kv : freqs.entrySet()) {
+            entries.add(new byte[][] { kv.getKey().getBytes(UTF8),
+                            ByteBuffer.allocate(4).putInt(kv.getValue()).array() });
+        }
+        // the index refers to entries by their place in the table, so it is built once they are in table order
+        sort(entries);
+        int numOfSlots = Integer.highestOneBit(Math.max(entries.size(), 1) * 2) * 2;
+        int[] slots = new int[3 * numOfSlots];
+        for (int i = 0; i < entries.size(); i++) {
+            byte[][] kv = entries.get(i);
+            int h = new String(kv[0], UTF8).hashCode();
+            int slot = mix(h) & (numOfSlots - 1);
+            while (slots[3 * slot + 1] != 0) {
+                slot = (slot + 1) & (numOfSlots - 1);
+            }
+            slots[3 * slot] = h;
+            slots[3 * slot + 1] = i + 1;
+            slots[3 * slot + 2] = ByteBuffer.wrap(kv[1]).getInt();
+        }
+        ByteBuffer index = ByteBuffer.allocate(4 + 4 * slots.length);
+        index.putInt(numOfSlots);
+        index.asIntBuffer().put(slots);
+
+        // written aside first, so that a failed compile leaves the old table whole
+        File tmp = new File(tableFile.getPath() + ".tmp");
+        write(tmp, entries, index.array());
+        Files.move(tmp.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return entries.size();
+    }
+
+}
@@ -0,0 +1,247 @@
+package media_analysis.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable string-keyed table in a single file, memory-mapped on open so that lookups need no heap and processes
+ * share one page-cache copy. Keys are UTF-8, sorted bytewise and binary-searched; values are byte strings.
+ * Layout: magic, entry count n, n+1 key offsets, n+1 value offsets, key bytes, value bytes.
+ * Lookups only use absolute reads, so a table may be shared between threads.
+ * @author yuvalp
+ *
+ */
+public class MappedStringTable {
+
+    private static final int MAGIC = 0x4d535431; // "MST1"
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected final ByteBuffer buf;
+    private final int size;
+    private final int keyOffsetsStart;
+    private final int valueOffsetsStart;
+    private final int keysStart;
+    private final int valuesStart;
+
+    public MappedStringTable(File tableFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(tableFile, "r");
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a string table: " + tableFile);
+        }
+        size = buf.getInt(4);
+        keyOffsetsStart = 8;
+        valueOffsetsStart = keyOffsetsStart + 4 * (size + 1);
+        keysStart = valueOffsetsStart + 4 * (size + 1);
+        valuesStart = keysStart + buf.getInt(keyOffsetsStart + 4 * size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return index of the key, or -1 if absent
+     */
+    public int indexOf(String key) {
+        byte[] k = key.getBytes(UTF8);
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareKey(mid, k);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareKey(int index, byte[] k) {
+        int from = keysStart + buf.getInt(keyOffsetsStart + 4 * index);
+        int len = keysStart + buf.getInt(keyOffsetsStart + 4 * (index + 1)) - from;
+        int n = Math.min(len, k.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buf.get(from + i) & 0xff) - (k[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return len - k.length;
+    }
+
+    /**
+     * @return whether the key at the given index is the string, compared without encoding it
+     */
+    protected boolean keyEquals(int index, String key) {
+        return keyEquals(index, key, 0, key.length());
+    }
+
+    /**
+     * @return whether the key at the given index is src.substring(from, to), compared without copying it
+     */
+    protected boolean keyEquals(int index, String src, int from, int to) {
+        int pos = keysStart + buf.getInt(keyOffsetsStart + 4 * index);
+        int end = keysStart + buf.getInt(keyOffsetsStart + 4 * (index + 1));
+        int i = from;
+        while (pos < end && i < to) {
+            int b = buf.get(pos) & 0xff;
+            int cp;
+            if (b < 0x80) {
+                cp = b;
+                pos++;
+            } else if (b < 0xe0) {
+                cp = (b & 0x1f) << 6 | buf.get(pos + 1) & 0x3f;
+                pos += 2;
+            } else if (b < 0xf0) {
+                cp = (b & 0x0f) << 12 | (buf.get(pos + 1) & 0x3f) << 6 | buf.get(pos + 2) & 0x3f;
+                pos += 3;
+            } else {
+                cp = (b & 0x07) << 18 | (buf.get(pos + 1) & 0x3f) << 12 | (buf.get(pos + 2) & 0x3f) << 6
+                                | buf.get(pos + 3) & 0x3f;
+                pos += 4;
+            }
+            int c = src.charAt(i);
+            if (Character.isHighSurrogate(src.charAt(i)) && i + 1 < to && Character.isLowSurrogate(src.charAt(i + 1))) {
+                c = Character.toCodePoint(src.charAt(i), src.charAt(i + 1));
+            }
+            if (c != cp) {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+        return pos == end && i == to;
+    }
+
+    /**
+     * @return the key at the given index in sorted order
+     */
+    public String keyAt(int index) {
+        int from = keysStart + buf.getInt(keyOffsetsStart + 4 * index);
+        int len = keysStart + buf.getInt(keyOffsetsStart + 4 * (index + 1)) - from;
+        return new String(bytes(from, len), UTF8);
+    }
+
+    /**
+     * @return the value as UTF-8 text, or null if the key is absent
+     */
+    public String getString(String key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        int from = valuePosition(index);
+        int len = valuePosition(index + 1) - from;
+        return new String(bytes(from, len), UTF8);
+    }
+
+    /**
+     * @return position of the value at the given index in the mapped buffer
+     */
+    protected int valuePosition(int index) {
+        return valuesStart + buf.getInt(valueOffsetsStart + 4 * index);
+    }
+
+    /**
+     * @return position right after the table in the mapped buffer, where subclasses may keep more data
+     */
+    protected int end() {
+        return valuePosition(size);
+    }
+
+    private byte[] bytes(int from, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = buf.get(from + i);
+        }
+        return b;
+    }
+
+    public static void writeStrings(File tableFile, Map<String, String> table) throws IOException {
+        List<byte[][]> entries = new ArrayList<>(table.size());
+        for (Entry<String, String> kv : table.entrySet()) {
+            entries.add(new byte[][] { kv.getKey().getBytes(UTF8), kv.getValue().getBytes(UTF8) });
+        }
+        write(tableFile, entries);
+    }
+
+    /**
+     * @param entries pairs of key and value bytes, in any order; sorted in place
+     */
+    protected static void write(File tableFile, List<byte[][]> entries) throws IOException {
+        write(tableFile, entries, new byte[0]);
+    }
+
+    /**
+     * @param entries pairs of key and value bytes, sorted in place, so that after {@link #sort(List)} the index of an
+     *            entry in the table is its index in the list
+     * @param trailer written right after the table, see {@link #end()}
+     */
+    protected static void write(File tableFile, List<byte[][]> entries, byte[] trailer) throws IOException {
+        sort(entries);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tableFile)));
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        for (int part = 0; part < 2; part++) {
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[][] kv : entries) {
+                offset += kv[part].length;
+                out.writeInt(offset);
+            }
+        }
+        for (int part = 0; part < 2; part++) {
+            for (byte[][] kv : entries) {
+                out.write(kv[part]);
+            }
+        }
+        out.write(trailer);
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Sorts entries in table order, by key bytes.
+     */
+    protected static void sort(List<byte[][]> entries) {
+        Collections.sort(entries, new Comparator<byte[][]>() {
+
+            @Override
+            public int compare(byte[][] o1, byte[][] o2) {
+                byte[] k1 = o1[0];
+                byte[] k2 = o2[0];
+                int n = Math.min(k1.length, k2.length);
+                for (int i = 0; i < n; i++) {
+                    int cmp = (k1[i] & 0xff) - (k2[i] & 0xff);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                }
+                return k1.length - k2.length;
+            }
+
+        });
+    }
+
+}
@@ -0,0 +1,235 @@
+package media_analysis.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters, latency histograms and gauges shared by the pipeline's stages, written as a Prometheus text
+ * file every {@link #PERIOD_PROPERTY} seconds and at the end of the run, if {@link #OUTPUT_PROPERTY} is set (e.g.
+ * -Dmedia_analysis.metrics=data/metrics.prom). Metrics are looked up by name and labels once, and kept by their users
+ * in fields, so recording is just an atomic update.
+ * Each stage counts its items under {@link #items(String)}, which also reports the stage's throughput since the
+ * counter was first asked for.
+ * @author yuvalp
+ *
+ */
+public class Metrics {
+
+    public static final String OUTPUT_PROPERTY = "media_analysis.metrics";
+    public static final String PERIOD_PROPERTY = "media_analysis.metrics.period";
+    private static final String PREFIX = "media_analysis_";
+    private static final long DEFAULT_PERIOD_SECONDS = 30;
+
+    /**
+     * A value read when metrics are written, e.g. a cache's hit count.
+     */
+    public interface Gauge {
+
+        double value();
+
+    }
+
+    // name -> labels -> metric, sorted for stable output
+    private static final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> histograms =
+                    new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, Gauge>> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Long> stageStarts = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService exporter = null;
+
+    public static AtomicLong counter(String name, String labels) {
+        ConcurrentMap<String, AtomicLong> byLabels = family(counters, name);
+        AtomicLong c = byLabels.get(labels);
+        if (c == null) {
+            byLabels.putIfAbsent(labels, new AtomicLong());
+            c = byLabels.get(labels);
+        }
+        return c;
+    }
+
+    public static LatencyHistogram histogram(String name, String labels) {
+        ConcurrentMap<String, LatencyHistogram> byLabels = family(histograms, name);
+        LatencyHistogram h = byLabels.get(labels);
+        if (h == null) {
+            byLabels.putIfAbsent(labels, new LatencyHistogram());
+            h = byLabels.get(labels);
+        }
+        return h;
+    }
+
+    /**
+     * Registers a gauge, replacing any with the same name and labels.
+     */
+    public static void gauge(String name, String labels, Gauge g) {
+        family(gauges, name).put(labels, g);
+    }
+
+    /**
+     * @return counter of the items (dates, lines, headlines) the stage has processed
+     */
+    public static AtomicLong items(String stage) {
+        stageStarts.putIfAbsent(stage, System.nanoTime());
+        return counter("items_total", labels("stage", stage));
+    }
+
+    /**
+     * @return counter of items the stage could not process for the given reason
+     */
+    public static AtomicLong failures(String stage, String outlet, String reason) {
+        return counter("failures_total", labels("stage", stage, "outlet", outlet, "reason", reason));
+    }
+
+    /**
+     * @param keysAndValues alternating label names and values
+     * @return labels in the Prometheus format, e.g. stage="tokenize",outlet="NRG"
+     */
+    public static String labels(String... keysAndValues) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(keysAndValues[i]).append("=\"").append(keysAndValues[i + 1].replace("\"", "\\\"")).append("\"");
+        }
+        return sb.toString();
+    }
+
+    private static <M> ConcurrentMap<String, M> family(ConcurrentMap<String, ConcurrentMap<String, M>> metrics,
+                    String name) {
+        ConcurrentMap<String, M> byLabels = metrics.get(name);
+        if (byLabels == null) {
+            metrics.putIfAbsent(name, new ConcurrentHashMap<String, M>());
+            byLabels = metrics.get(name);
+        }
+        return byLabels;
+    }
+
+    /**
+     * Starts writing metrics periodically, if an output file is configured. Safe to call more than once.
+     */
+    public static synchronized void startExport() {
+        final String location = System.getProperty(OUTPUT_PROPERTY);
+        if (location == null || exporter != null) {
+            return;
+        }
+        long period = Long.getLong(PERIOD_PROPERTY, DEFAULT_PERIOD_SECONDS);
+        exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-export");
+                t.setDaemon(true);
+                return t;
+            }
+
+        });
+        exporter.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write(location);
+                } catch (IOException e) {
+                    System.err.println("Could not write metrics to " + location + ": " + e);
+                }
+            }
+
+        }, period, period, TimeUnit.SECONDS);
+        System.out.println("Writing metrics to " + location + " every " + period + " seconds");
+    }
+
+    /**
+     * Stops periodic writing, and writes the final metrics if an output file is configured.
+     */
+    public static synchronized void finish() throws IOException {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+        String location = System.getProperty(OUTPUT_PROPERTY);
+        if (location != null) {
+            write(location);
+        }
+    }
+
+    private static void write(String location) throws IOException {
+        File tmp = new File(location + ".tmp");
+        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF8");
+        out.append(render());
+        out.flush();
+        out.close();
+        Files.move(tmp.toPath(), new File(location).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format
+     */
+    public static String render() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry<String, Map<String, AtomicLong>> family : sorted(counters).entrySet()) {
+            sb.append("# TYPE ").append(PREFIX).append(family.getKey()).append(" counter\n");
+            for (Entry<String, AtomicLong> c : family.getValue().entrySet()) {
+                appendSample(sb, family.getKey(), c.getKey(), Long.toString(c.getValue().get()));
+            }
+        }
+        for (Entry<String, Map<String, Gauge>> family : sorted(gauges).entrySet()) {
+            sb.append("# TYPE ").append(PREFIX).append(family.getKey()).append(" gauge\n");
+            for (Entry<String, Gauge> g : family.getValue().entrySet()) {
+                appendSample(sb, family.getKey(), g.getKey(), format(g.getValue().value()));
+            }
+        }
+        for (Entry<String, Map<String, LatencyHistogram>> family : sorted(histograms).entrySet()) {
+            sb.append("# TYPE ").append(PREFIX).append(family.getKey()).append(" summary\n");
+            for (Entry<String, LatencyHistogram> h : family.getValue().entrySet()) {
+                h.getValue().appendPrometheus(sb, PREFIX + family.getKey(), h.getKey());
+            }
+        }
+        if (!stageStarts.isEmpty()) {
+            long now = System.nanoTime();
+            sb.append("# TYPE ").append(PREFIX).append("items_per_second gauge\n");
+            for (Entry<String, Long> s : new TreeMap<>(stageStarts).entrySet()) {
+                double seconds = (now - s.getValue()) / 1e9;
+                long items = counter("items_total", labels("stage", s.getKey())).get();
+                appendSample(sb, "items_per_second", labels("stage", s.getKey()), format(items / seconds));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static <M> TreeMap<String, Map<String, M>> sorted(ConcurrentMap<String, ConcurrentMap<String, M>> metrics) {
+        TreeMap<String, Map<String, M>> sorted = new TreeMap<>();
+        for (Entry<String, ConcurrentMap<String, M>> family : metrics.entrySet()) {
+            sorted.put(family.getKey(), new TreeMap<>(family.getValue()));
+        }
+        return sorted;
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            sb.append("{").append(labels).append("}");
+        }
+        sb.append(" ").append(value).append("\n");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.3f", value);
+    }
+
+}
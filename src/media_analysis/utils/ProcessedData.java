@@ -2,6 +2,7 @@ package media_analysis.utils;
 
 public class ProcessedData {
 
+    // top lemmata of other months can be generated by media_analysis.corpus.LemmaCube (months)
     public static final String[] topFiftyFebLemmata = {"את", "נתניהו", "נשל", "0", "לא", "על", "ישראל", "בית", "עם",
                     "ניגד", "שלג", "מבקר", "בחירה", "ממשלה", "איחר", "איראן", "נאם", "ליכוד", "הרצוג", "דאעש",
                     "ירושלים", "היה", "קונגרס", "משטרה", "מדינה", "דרום", "כול", "ראש", "דיור", "לפיד", "דוח", "פיגוע",
@@ -0,0 +1,240 @@
+package media_analysis.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Counts strings in an open-addressing (linear probing) table of primitive counts. Keys can be counted straight from a
+ * range of a larger string, which is only copied the first time it is seen. Not thread-safe; count in separate
+ * instances and {@link #addAll(StringIntCounter)} them.
+ * @author yuvalp
+ *
+ */
+public class StringIntCounter {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private String[] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int size = 0;
+    private long total = 0;
+
+    public StringIntCounter() {
+        keys = new String[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return sum of all counts
+     */
+    public long total() {
+        return total;
+    }
+
+    public void increment(String key) {
+        add(key, 0, key.length(), 1);
+    }
+
+    /**
+     * Adds to the count of src.substring(from, to).
+     */
+    public void add(String src, int from, int to, int delta) {
+        int h = hash(src, from, to);
+        int len = to - from;
+        int mask = keys.length - 1;
+        int slot = h & mask;
+        String k = keys[slot];
+        while (k != null) {
+            if (hashes[slot] == h && k.length() == len && src.regionMatches(from, k, 0, len)) {
+                counts[slot] += delta;
+                total += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+            k = keys[slot];
+        }
+        keys[slot] = from == 0 && to == src.length() ? src : src.substring(from, to);
+        hashes[slot] = h;
+        counts[slot] = delta;
+        total += delta;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    public int get(String key) {
+        int h = hash(key, 0, key.length());
+        int mask = keys.length - 1;
+        int slot = h & mask;
+        String k = keys[slot];
+        while (k != null) {
+            if (hashes[slot] == h && k.equals(key)) {
+                return counts[slot];
+            }
+            slot = (slot + 1) & mask;
+            k = keys[slot];
+        }
+        return 0;
+    }
+
+    public void addAll(StringIntCounter other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            String k = other.keys[slot];
+            if (k != null) {
+                add(k, 0, k.length(), other.counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * Number of slots, some of which are empty; for iterating with {@link #keyAt(int)} and {@link #countAt(int)}.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return key in slot, or null if the slot is empty
+     */
+    public String keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int countAt(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * Selects the k slots with highest counts among those counted at least threshold times. With a limit this is one
+     * pass over the table with a bounded heap, so that only the selected slots are ever sorted.
+     * @param k maximal number of slots, or a negative number for no limit
+     * @return selected slots, by descending count and then by key, so that the order does not depend on the table
+     */
+    public int[] topSlots(int k, int threshold) {
+        if (k < 0) {
+            return sortedSlots(threshold);
+        }
+        int limit = Math.min(k, size);
+        // heap of the slots selected so far, with the one ordered last at the root
+        int[] heap = new int[limit];
+        int heapSize = 0;
+        for (int slot = 0; slot < keys.length && limit > 0; slot++) {
+            if (keys[slot] == null || counts[slot] < threshold) {
+                continue;
+            }
+            if (heapSize < limit) {
+                heap[heapSize] = slot;
+                siftUp(heap, heapSize++);
+            } else if (compareSlots(slot, heap[0]) < 0) {
+                heap[0] = slot;
+                siftDown(heap, heapSize);
+            }
+        }
+        // moving the root past the end of the shrinking heap leaves the slots in order
+        for (int n = heapSize - 1; n > 0; n--) {
+            int last = heap[0];
+            heap[0] = heap[n];
+            siftDown(heap, n);
+            heap[n] = last;
+        }
+        return heapSize == heap.length ? heap : Arrays.copyOf(heap, heapSize);
+    }
+
+    private int[] sortedSlots(int threshold) {
+        Integer[] selected = new Integer[size];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null && counts[slot] >= threshold) {
+                selected[n++] = slot;
+            }
+        }
+        Arrays.sort(selected, 0, n, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareSlots(a, b);
+            }
+        });
+        int[] slots = new int[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = selected[i];
+        }
+        return slots;
+    }
+
+    /**
+     * Orders slots by descending count, then by key.
+     */
+    private int compareSlots(int a, int b) {
+        if (counts[a] != counts[b]) {
+            return counts[a] > counts[b] ? -1 : 1;
+        }
+        return keys[a].compareTo(keys[b]);
+    }
+
+    private void siftUp(int[] heap, int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compareSlots(heap[parent], v) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = v;
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int v = heap[0];
+        int i = 0;
+        int child = 1;
+        while (child < size) {
+            if (child + 1 < size && compareSlots(heap[child + 1], heap[child]) > 0) {
+                child++;
+            }
+            if (compareSlots(heap[child], v) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+            child = 2 * i + 1;
+        }
+        heap[i] = v;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int hash(String src, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + src.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+}